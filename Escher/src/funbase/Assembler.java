@@ -227,7 +227,7 @@ public class Assembler {
 
     public static Primitive primitives[] = {
 	new Primitive("assemble", 3) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		String f = args[base+0].toString();
 		int arity = (int) cxt.number(args[base+1]);
 		Value code = args[base+2];
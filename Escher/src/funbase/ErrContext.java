@@ -37,7 +37,11 @@ import funbase.Value.WrongKindException;
 
 /** Context for runtime error messages */
 public class ErrContext implements Serializable {
-    private String name, callee;
+    /* Fixed so that saved sessions still load after the callee field 
+       was removed */
+    private static final long serialVersionUID = 5185594430642480527L;
+
+    private String name;
     
     public ErrContext(String name) {
         this.name = name;
@@ -47,13 +51,13 @@ public class ErrContext implements Serializable {
 	return (name == null ? message : message + " in function " + name);
     }
     
-    public void setCallee(String callee) { this.callee = callee; }
-    
     public String getName() { return name; }
     
     public ErrContext parent() { return this; }
     
-    public String getFunction() { return callee; }
+    /** Name to use for the function in type errors, or null if the 
+     *  primitive that detects the error should supply it */
+    public String getFunction() { return null; }
     
     public ErrContext freezeEnter(String name) {
 	return new FrozenContext(this, name);
@@ -105,8 +109,35 @@ public class ErrContext implements Serializable {
     }
 
     public void expect(String expected) {
-        primFail("'" + getFunction() + "' expects a " 
-        	+ expected + " argument", "#type");
+        String fun = getFunction();
+        if (fun == null) throw new ExpectException(expected, this);
+        primFail(expectMessage(fun, expected), "#type");
+    }
+
+    private static String expectMessage(String fun, String expected) {
+        return "'" + fun + "' expects a " + expected + " argument";
+    }
+
+    /** A type error detected in a primitive.  The context is shared by
+     *  every call made from the same place, so it cannot record which 
+     *  primitive was called; instead, Primitive.apply catches the 
+     *  exception and rethrows it with the name filled in. */
+    public static class ExpectException extends EvalException {
+        private final String expected;
+        private final ErrContext cxt;
+
+        public ExpectException(String expected, ErrContext cxt) {
+            super("a " + expected + " argument was expected", 
+        	    cxt.parent(), "#type");
+            this.expected = expected;
+            this.cxt = cxt;
+        }
+
+        /** The same error, reported against a named function */
+        public EvalException forFunction(String fun) {
+            return new EvalException(expectMessage(fun, expected), 
+        	    cxt.parent(), "#type");
+        }
     }
 
     /** Fetch value of a NumValue object, or throw EvalException */
@@ -51,6 +51,28 @@ public class Evaluator {
     protected static int timeLimit = 10000;
     protected static int stepLimit = 200000;
     protected static int consLimit = 100000;
+    
+    /** Limit on the estimated size of the frames that are waiting for
+     * a function to return, or 0 for no limit.  Frames are kept on the
+     * heap, so this is what bounds the depth of recursion. */
+    protected static long stackLimit = 
+	Runtime.getRuntime().maxMemory() / 2;
+    
+    /** Policies for output from 'print': write and flush each line
+     * at once, or collect lines and write them in batches */
+    public static final int PRINT_EACH = 0, PRINT_BATCH = 1;
+    
+    protected static int printPolicy = PRINT_BATCH;
+    
+    /** Lines printed but not yet written to the log */
+    private final PrintBuffer printBuffer = new PrintBuffer(10);
+
+    /** Longest time in ns that printed lines are held back, about
+     * one frame, so progress messages still appear as they happen */
+    private static final long PRINT_INTERVAL = 33000000L;
+
+    /** Time of the last drain of the print buffer */
+    private long lastDrain;
 
     public Evaluator(Value phrase, String text, boolean display,
 		     PrintWriter out) {
@@ -97,10 +119,13 @@ public class Evaluator {
 	}
 
 	conses = 0; steps = 0; runFlag = true;
+	lastDrain = System.nanoTime();
 	try {
 	    Result result = compileAndGo(phrase);
 	    while (result != null) {
 		checkpoint();
+		if ((steps & 0xfff) == 0 && printBuffer.size() > 0)
+		    drainIfDue();
 		result = result.resume(this);
 	    }
 	}
@@ -110,6 +135,7 @@ public class Evaluator {
 	}
 	finally {
 	    if (timer != null) timer.interrupt();
+	    printBuffer.drain(out);
 	}
 	
 	return answer;
@@ -137,12 +163,27 @@ public class Evaluator {
 	Evaluator.consLimit = consLimit;
     }
     
+    public static void setStackLimit(long stackLimit) {
+	Evaluator.stackLimit = stackLimit;
+    }
+    
+    /** Check the size of the frames that make up a continuation */
+    public static void checkStack(long size, ErrContext cxt) {
+	if (stackLimit > 0 && size > stackLimit)
+	    throw new EvalException("recursion went too deep", cxt, "#stack");
+    }
+    
+    public static void setPrintPolicy(int policy) {
+	Evaluator.printPolicy = policy;
+    }
+    
     public void reset() {
 	steps = conses = 0;
     }
     
     /** Called when evaluation of a top-level expression is complete */
     public void exprValue(Value v) {
+	printBuffer.drain(out);
 	answer = v;
 	Name.find("it").setGlodef(v, null);
 	if (display) {
@@ -154,6 +195,7 @@ public class Evaluator {
     
     /** Called when elaboration of a top-level definition is complete */
     public void defnValue(Name n, Value v) {
+	printBuffer.drain(out);
 	answer = v;
 	n.setGlodef(v, text);
 	if (display) {
@@ -163,19 +205,51 @@ public class Evaluator {
 	}
     }
     
+    /** Print a value on the log, or add it to the buffer of lines
+     * to be written later */
     public void println(Value v) {
-	out.println(v);
-	out.flush();
+	if (printPolicy == PRINT_EACH) {
+	    out.println(v);
+	    out.flush();
+	}
+	else {
+	    printBuffer.add(v.toString(), out);
+	    drainIfDue();
+	}
+    }
+
+    /** Write buffered lines if they have been held for long enough */
+    private void drainIfDue() {
+	long now = System.nanoTime();
+	if (now - lastDrain >= PRINT_INTERVAL) {
+	    printBuffer.drain(out);
+	    lastDrain = now;
+	}
+    }
+    
+    /** Write any buffered lines on the log */
+    public void flushPrint() {
+	printBuffer.drain(out);
     }
     
     public void printStats(PrintWriter log) {
         log.format("(%d %s, %d %s)\n", steps, (steps == 1 ? "step" : "steps"), 
         	conses, (conses == 1 ? "cons" : "conses"));
+        int overflows = printBuffer.getOverflows();
+        if (overflows > 0)
+            log.format("(print buffer filled %d %s)\n", overflows,
+        	    (overflows == 1 ? "time" : "times"));
     }
 
     public static abstract class Continuation {
 	public abstract Result result(Value v);
 	
+	/** Estimated size in bytes of the frames held by this 
+	 * continuation and the ones it returns to */
+	public long stackSize() {
+	    return 0;
+	}
+	
 	public Continuation copy() {
 	    return this;
 	}
@@ -66,6 +66,10 @@ public abstract class Function extends Value {
 		+ " but needs " + arity, cxt, "#numargs");
     }
 
+    public String getName() { return name; }
+
+    public int getArity() { return arity; }
+
     public void freeze() { frozen = true; }
 
     public boolean isFrozen() { return frozen; }
@@ -85,6 +85,16 @@ public class Machine extends Continuation implements Result {
 
     private int pc = 0, sp, trap = -1;
     
+    /** Estimated size of this frame and those of its callers */
+    private final long stackSize;
+    
+    /** Whether this activation has been captured as part of a
+     * continuation.  A shared machine is never changed: when a value
+     * is returned to it, it makes a copy of itself and continues in
+     * that.  If a machine is shared, then so are all the machines in
+     * its chain of return continuations. */
+    private boolean shared = false;
+    
     /* The function uses the following storage locations in its own frame:
      * 
      *   args[base .. base+nargs) are the arguments
@@ -112,7 +122,17 @@ public class Machine extends Continuation implements Result {
 
 	this.stack = new Value[code.fsize+code.ssize];	    
 	sp = code.fsize;
+
+	stackSize = k.stackSize() + FRAME_SIZE + 4 * stack.length;
+	Evaluator.checkStack(stackSize, cxt);
     }
+
+    /** Approximate size in bytes of a machine and its stack array,
+     * not counting the stack slots */
+    private static final int FRAME_SIZE = 80;
+    
+    @Override
+    public long stackSize() { return stackSize; }
     
     /** Constuct a top-level machine */
     public Machine(ByteCode code) {
@@ -126,19 +146,39 @@ public class Machine extends Continuation implements Result {
     }
     
     public Result result(Value v) {
-	stack[sp++] = v;
-	return this;
+	Machine m = (shared ? fork() : this);
+	m.stack[m.sp++] = v;
+	return m;
     }
 
-    @Override
-    public Continuation copy() {
+    /** Make an unshared copy of this activation to continue in.  The
+     * return continuation is not copied, because it too will copy
+     * itself when it is resumed. */
+    private Machine fork() {
 	Machine fresh = 
-	    new Machine(code, fvars, args, base, cxt, retcont.copy());
+	    new Machine(code, fvars, args, base, cxt, retcont);
 	fresh.pc = pc; fresh.sp = sp; fresh.trap = trap;
 	System.arraycopy(stack, 0, fresh.stack, 0, sp);
 	return fresh;
     }
 
+    /** Capture this activation and its callers.  Rather than copying
+     * the whole chain, we mark the machines as shared, stopping at
+     * the first one that is already marked; so capturing costs 
+     * nothing once the chain has been captured before, and a machine 
+     * is copied only when it is actually resumed. */
+    @Override
+    public Continuation copy() {
+	Continuation k = this;
+	while (k instanceof Machine && ! ((Machine) k).shared) {
+	    Machine m = (Machine) k;
+	    m.shared = true;
+	    k = m.retcont;
+	}
+	if (! (k instanceof Machine)) k.copy();
+	return this;
+    }
+
     public Result resume(Evaluator ev) {
 	while (true) {
 	    int op = code.instrs[pc];
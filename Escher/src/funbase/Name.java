@@ -81,6 +81,8 @@ public class Name extends Value
     
     public boolean equals(Object a) { return this == a; }
     
+    public int hashCode() { return tag.hashCode(); }
+    
     public int compareTo(Name other) {
 	if (this == other) return 0;
 	return this.tag.compareTo(other.tag);
@@ -44,16 +44,16 @@ import funbase.Evaluator.Result;
 /** A value that represents a primitive function like 'sqrt' or '+'. */
 public abstract class Primitive extends Function {
     
-    /** Context of latest invocation */
-    public transient ErrContext cxt;
-    
     protected Primitive(String name, int arity) {
 	super(name, arity);
     }
     
     /** Compute the result of the primitive, assuming correct number 
-        of args. */
-    protected Value invoke(Value args[], int base) {
+        of args.  Each primitive is shared by every caller, so any state
+        that belongs to one call must be kept in local variables, not
+        in fields, and errors must be reported through the context
+        that is passed in. */
+    protected Value invoke(Value args[], int base, ErrContext cxt) {
 	// self subclassResponsibility
 	throw new EvalException("primitive " + name 
 		+ " has no invoke method", cxt);
@@ -64,8 +64,14 @@ public abstract class Primitive extends Function {
 	    ErrContext cxt, Continuation k) {
 	assert cxt != null;
 	if (nargs != arity) badArity(nargs, cxt);
-	this.cxt = cxt; cxt.setCallee(name);
-	return k.result(this.invoke(args, base));
+	Value result;
+	try {
+	    result = this.invoke(args, base, cxt);
+	}
+	catch (ErrContext.ExpectException e) {
+	    throw e.forFunction(name);
+	}
+	return k.result(result);
     }
     
     public boolean equals(Object a) { return false; }
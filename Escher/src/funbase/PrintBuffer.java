@@ -0,0 +1,71 @@
+package funbase;
+
+import java.io.PrintWriter;
+
+/** A ring buffer for the output of the 'print' primitive.
+ *
+ *  The evaluator adds lines without taking a lock or touching the
+ *  log, and they are written to the log in batches with a single flush:
+ *  on the Android console each flush moves the selection and redraws,
+ *  so flushing after every line throttles a script that prints in a
+ *  loop.  The evaluator drains the buffer when a line has been
+ *  waiting for about a frame, and whenever it shows a result; drainers
+ *  are serialized with a lock, but adding a line never waits for
+ *  them.
+ *
+ *  If the buffer fills up, the evaluating thread drains it itself, so
+ *  no output is lost; the number of times this happens is counted as
+ *  overflows. */
+public class PrintBuffer {
+    private final String lines[];
+    private final int mask;
+
+    /** Count of lines added and lines removed.  Only the producer
+     * writes tail, and only a drainer holding the lock writes head. */
+    private volatile long head = 0, tail = 0;
+
+    private int overflows = 0;
+
+    /** Make a buffer for 2^bits lines */
+    public PrintBuffer(int bits) {
+	lines = new String[1 << bits];
+	mask = lines.length - 1;
+    }
+
+    /** Add a line, or return false if the buffer is full */
+    public boolean offer(String s) {
+	long t = tail;
+	if (t - head >= lines.length) return false;
+	lines[(int) t & mask] = s;
+	tail = t + 1;
+	return true;
+    }
+
+    /** Add a line, draining the buffer into out first if it is full */
+    public void add(String s, PrintWriter out) {
+	while (! offer(s)) {
+	    synchronized (this) { overflows++; }
+	    drain(out);
+	}
+    }
+
+    /** Write any waiting lines on out and flush it once */
+    public synchronized void drain(PrintWriter out) {
+	long h = head, t = tail;
+	if (h == t) return;
+	for (; h < t; h++) {
+	    int i = (int) h & mask;
+	    out.println(lines[i]);
+	    lines[i] = null;
+	}
+	head = h;
+	out.flush();
+    }
+
+    /** Number of lines waiting to be written */
+    public int size() {
+	return (int) (tail - head);
+    }
+
+    public synchronized int getOverflows() { return overflows; }
+}
@@ -0,0 +1,103 @@
+package funbase;
+
+/** A source of pseudo-random numbers for the 'random' primitive.
+ *
+ *  Each thread has its own source, so that threads evaluating at the
+ *  same time do not contend for a lock as they would with
+ *  Math.random.  The source belongs to the thread rather than to an
+ *  Evaluator because each top-level phrase gets a new Evaluator, and
+ *  a seed set by one phrase must carry on into the next; so a script
+ *  that sets the seed gets the same numbers every time it is run.
+ *
+ *  The generator is SplitMix64, as in java.util.SplittableRandom,
+ *  which Android lacks before API 24: it is fast, and its state is a
+ *  seed and an odd gamma that is added to it at each step.  split
+ *  gives a new source with its own seed and gamma, both taken from
+ *  this one, so that its numbers are independent of the old one's.
+ *  Nothing here splits sources: TiledRenderer's workers only draw,
+ *  and never evaluate 'random'.  Code that evaluates on other threads
+ *  should give each one a split source with setCurrent. */
+public class RandomSource {
+    private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    /** Increment of the state, always odd */
+    private final long gamma;
+
+    private RandomSource(long seed, long gamma) {
+	this.state = seed;
+	this.gamma = gamma;
+    }
+
+    public RandomSource(long seed) {
+	this(seed, GOLDEN);
+    }
+
+    /** Seeds for sources made without one, so different threads get
+     * different numbers */
+    private static long seeds = mix(System.nanoTime());
+
+    private static synchronized long newSeed() {
+	seeds += GOLDEN;
+	return mix(seeds);
+    }
+
+    public RandomSource() {
+	this(newSeed());
+    }
+
+    private static long mix(long z) {
+	z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+	z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+	return z ^ (z >>> 31);
+    }
+
+    /** Make a gamma from a seed: an odd number with enough changes
+     * between adjacent bits that the sequence of states is not
+     * obviously regular */
+    private static long mixGamma(long z) {
+	z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+	z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+	z = (z ^ (z >>> 33)) | 1L;
+	int n = Long.bitCount(z ^ (z >>> 1));
+	return (n < 24 ? z ^ 0xaaaaaaaaaaaaaaaaL : z);
+    }
+
+    private long nextSeed() {
+	return (state += gamma);
+    }
+
+    public long nextLong() {
+	return mix(nextSeed());
+    }
+
+    /** A number uniformly distributed in [0, 1) */
+    public double nextDouble() {
+	return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+
+    /** Make a new source, with its seed and gamma taken from this
+     * one */
+    public RandomSource split() {
+	return new RandomSource(nextLong(), mixGamma(nextSeed()));
+    }
+
+    private static final ThreadLocal<RandomSource> current =
+	new ThreadLocal<RandomSource>() {
+	    @Override
+	    protected RandomSource initialValue() {
+		return new RandomSource();
+	    }
+	};
+
+    /** The source for the current thread */
+    public static RandomSource current() {
+	return current.get();
+    }
+
+    /** Replace the source for the current thread */
+    public static void setCurrent(RandomSource r) {
+	current.set(r);
+    }
+}
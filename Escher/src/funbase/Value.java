@@ -31,11 +31,14 @@
 package funbase;
 
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.StringWriter;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 
 import funbase.Evaluator.Continuation;
 import funbase.Evaluator.EvalException;
@@ -106,6 +109,20 @@ public abstract class Value implements Serializable {
 	throw new WrongKindException();
     }
     
+    /** Length of a string, without flattening it */
+    public int stringLength() throws WrongKindException {
+	throw new WrongKindException();
+    }
+    
+    /** Concatenate this string with another.  Long strings are joined
+     * by making a node that refers to both, and the characters are
+     * copied only when the text is needed; so a string built up piece
+     * by piece takes linear time rather than quadratic.  The result
+     * is null if it would be too long. */
+    public Value concat(Value s) throws WrongKindException {
+	throw new WrongKindException();
+    }
+    
     public Value getHead() throws WrongKindException {
 	throw new WrongKindException();
     }
@@ -120,7 +137,24 @@ public abstract class Value implements Serializable {
     
     // Factory methods
     
+    /** Range of integers that have shared values */
+    private static final int MINSMALL = -128, MAXSMALL = 1024;
+    
+    private static final Value smallInts[] = 
+	new Value[MAXSMALL - MINSMALL + 1];
+    
+    static {
+	for (int i = MINSMALL; i <= MAXSMALL; i++)
+	    smallInts[i - MINSMALL] = new NumValue(i);
+    }
+    
     public static Value makeNumValue(double val) { 
+	/* Small integers are shared, since loops and pixel coordinates 
+	 * make lots of them.  Minus zero is not the same as zero. */
+	int n = (int) val;
+	if (n == val && n >= MINSMALL && n <= MAXSMALL 
+		&& (n != 0 || 1/val > 0))
+	    return smallInts[n - MINSMALL];
 	return new NumValue(val);
     }
     
@@ -213,6 +247,12 @@ public abstract class Value implements Serializable {
 	    return (a instanceof NumValue && val == ((NumValue) a).val);
 	}
 	
+	public int hashCode() {
+	    // 0.0 and -0.0 are equal, so they must have the same hash
+	    long bits = (val == 0.0 ? 0L : Double.doubleToLongBits(val));
+	    return (int) (bits ^ (bits >>> 32));
+	}
+	
 	@Override
 	public void dump() {
 	    if (val == (int) val)
@@ -242,6 +282,8 @@ public abstract class Value implements Serializable {
 	    return (a instanceof BoolValue && val == ((BoolValue) a).val);
 	}
 	
+	public int hashCode() { return (val ? 1231 : 1237); }
+	
 	/** Singletons */
 	private static BoolValue truth = new BoolValue(true), 
 	    falsity = new BoolValue(false);
@@ -263,23 +305,106 @@ public abstract class Value implements Serializable {
     private static class StringValue extends Value {
 	private static final long serialVersionUID = 1L;
 	
-	private String text;
+	/** The characters of the string, or null if it is a 
+	 * concatenation that has not been flattened yet */
+	private volatile String text;
+	
+	/** The two parts of a concatenation, or null */
+	private transient volatile StringValue left, right;
+	
+	/** Length of a concatenation */
+	private transient int length;
 	
 	private StringValue(String text) {
 	    Evaluator.countCons();
 	    this.text = text;
 	}
 	
+	private StringValue(StringValue left, StringValue right, int length) {
+	    Evaluator.countCons();
+	    this.left = left; this.right = right;
+	    this.length = length;
+	}
+	
+	/** Strings shorter than this are concatenated by copying */
+	private static final int SHORT = 64;
+	
+	/** Longest string we are willing to make */
+	private static final int MAXLEN = Integer.MAX_VALUE - 16;
+	
+	public Value concat(Value s) throws WrongKindException {
+	    if (! (s instanceof StringValue)) throw new WrongKindException();
+	    StringValue s1 = this, s2 = (StringValue) s;
+	    int n1 = s1.stringLength(), n2 = s2.stringLength();
+	    if (n1 == 0) return s2;
+	    if (n2 == 0) return s1;
+	    if (n1 > MAXLEN - n2) return null;
+	    if (n1 + n2 < SHORT)
+		return getInstance(s1.asString() + s2.asString());
+	    return new StringValue(s1, s2, n1 + n2);
+	}
+	
+	/** Copy the characters of a concatenation into a single string.
+	 * A string built by adding one piece at a time is a tree as deep
+	 * as the number of pieces, so we walk it with an explicit stack
+	 * rather than by recursion.
+	 *
+	 * No lock is needed: text is set before left and right are
+	 * cleared, and all three are volatile, so a thread that finds
+	 * either part missing is sure to see the text.  Two threads may
+	 * flatten the same string at once, but they get the same
+	 * answer. */
+	private String flatten() {
+	    char buf[] = new char[length];
+	    int pos = 0;
+	    ArrayList<StringValue> stack = new ArrayList<StringValue>();
+	    stack.add(this);
+	    while (! stack.isEmpty()) {
+		StringValue s = stack.remove(stack.size()-1);
+		StringValue l = s.left, r = s.right;
+		if (l != null && r != null) {
+		    stack.add(r); stack.add(l);
+		}
+		else {
+		    String t = s.text;
+		    t.getChars(0, t.length(), buf, pos);
+		    pos += t.length();
+		}
+	    }
+	    
+	    String t = new String(buf);
+	    text = t;
+	    left = right = null;
+	    return t;
+	}
+	
 	public void printOn(PrintWriter out) {
-	    out.format("\"%s\"", text);
+	    out.format("\"%s\"", asString());
 	}
 	
-	public String asString() { return text; }
-	public String toString() { return text; }
+	public String asString() { 
+	    String t = text;
+	    return (t != null ? t : flatten()); 
+	}
+	
+	public int stringLength() {
+	    String t = text;
+	    return (t != null ? t.length() : length);
+	}
+	
+	public String toString() { return asString(); }
 	
 	public boolean equals(Object a) {
 	    return (a instanceof StringValue 
-		    && text.equals(((StringValue) a).text));
+		    && asString().equals(((StringValue) a).asString()));
+	}
+	
+	public int hashCode() { return asString().hashCode(); }
+
+	private void writeObject(ObjectOutputStream stream) 
+		throws IOException {
+	    asString();
+	    stream.defaultWriteObject();
 	}
 
 	/** The empty string as a value */
@@ -322,7 +447,7 @@ public abstract class Value implements Serializable {
 	
 	@Override
 	public void dump() {
-	    System.out.printf("string \"%s\"\n", text);
+	    System.out.printf("string \"%s\"\n", asString());
 	}
     }
     
@@ -339,6 +464,8 @@ public abstract class Value implements Serializable {
 	    return (a instanceof NilValue);
 	}
 	
+	public int hashCode() { return 1; }
+	
 	private static final NilValue instance = new NilValue();
 	
 	public static NilValue getInstance() { return instance; }
@@ -385,9 +512,29 @@ public abstract class Value implements Serializable {
 	public void setTail(Value tail) { cdr = tail; }
 	
 	public boolean equals(Object a) {
-	    if (! (a instanceof ConsValue)) return false;
-	    ConsValue acons = (ConsValue) a;
-	    return (car.equals(acons.car) && cdr.equals(acons.cdr));
+	    /* Walk along both lists rather than recursing on the tails,
+	       so that long lists do not use up the Java stack */
+	    Value xs = this;
+	    Object ys = a;
+	    while (xs instanceof ConsValue) {
+		if (! (ys instanceof ConsValue)) return false;
+		ConsValue x = (ConsValue) xs, y = (ConsValue) ys;
+		if (! x.car.equals(y.car)) return false;
+		xs = x.cdr; ys = y.cdr;
+	    }
+	    return xs.equals(ys);
+	}
+	
+	public int hashCode() {
+	    // Like equals, this walks along the list
+	    int h = 1;
+	    Value xs = this;
+	    while (xs instanceof ConsValue) {
+		ConsValue x = (ConsValue) xs;
+		h = 31 * h + x.car.hashCode();
+		xs = x.cdr;
+	    }
+	    return 31 * h + xs.hashCode();
 	}
     }
 }
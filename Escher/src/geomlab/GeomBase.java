@@ -45,6 +45,7 @@ import java.net.URL;
 import android.app.Application;
 import android.content.Context;
 
+import funbase.ErrContext;
 import funbase.Evaluator;
 import funbase.Name;
 import funbase.Parser;
@@ -230,14 +231,14 @@ public class GeomBase extends Application {
 	/* A few system-oriented primitives */
 	new Primitive("primitive", 1) {
 		/* Look up a primitive */
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			return Primitive.find(cxt.string(args[base + 0]));
 		}
 	},
 
 	new Primitive("install", 1) {
 		/* Install a plug-in class with primitives. */
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			String name = cxt.string(args[base + 0]);
 			try {
 				Class<?> plugin;
@@ -258,21 +259,21 @@ public class GeomBase extends Application {
 	},
 
 	new Primitive("freeze", 0) {
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			Name.freezeGlobals();
 			return Value.nil;
 		}
 	},
 
 	new Primitive("error", 2) {
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			cxt.primFail(cxt.string(args[base + 0]), cxt.string(args[base + 1]));
 			return null;
 		}
 	},
 
 	new Primitive("opdef", 2) {
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			Scanner.addOperator(cxt.string(args[base + 0]),
 					cxt.string(args[base + 1]));
 			return Value.nil;
@@ -280,7 +281,7 @@ public class GeomBase extends Application {
 	},
 
 	new Primitive("load", 1) {
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			String name = cxt.string(args[base + 0]);
 			File current = theApp.getCurrentFile();
 			File file = (current == null ? new File(name) : new File(
@@ -291,7 +292,7 @@ public class GeomBase extends Application {
 	},
 
 	new Primitive("limit", 3) {
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			Evaluator.setLimits((int) cxt.number(args[base + 0]),
 					(int) cxt.number(args[base + 1]),
 					(int) cxt.number(args[base + 2]));
@@ -299,15 +300,39 @@ public class GeomBase extends Application {
 		}
 	},
 
+	new Primitive("stacklimit", 1) {
+		/* Set the space for frames of unfinished calls, in bytes */
+		public Value invoke(Value args[], int base, ErrContext cxt) {
+			Evaluator.setStackLimit((long) cxt.number(args[base + 0]));
+			return Value.nil;
+		}
+	},
+
+	new Primitive("printpolicy", 1) {
+		/* Choose whether 'print' writes each line at once ("each")
+		 * or in batches about once a frame ("batch") */
+		public Value invoke(Value args[], int base, ErrContext cxt) {
+			String policy = cxt.string(args[base + 0]);
+			if (policy.equals("each"))
+				Evaluator.setPrintPolicy(Evaluator.PRINT_EACH);
+			else if (policy.equals("batch"))
+				Evaluator.setPrintPolicy(Evaluator.PRINT_BATCH);
+			else
+				cxt.primFail("print policy must be \"each\" or \"batch\"",
+						"#printpolicy");
+			return Value.nil;
+		}
+	},
+
 	new Primitive("quit", 0) {
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			theApp.exit();
 			return Value.nil;
 		}
 	},
 
 	new Primitive("dump", 1) {
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			try {
 				Session.saveSession(new File(cxt.string(args[base + 0])));
 				return Value.nil;
@@ -318,7 +343,7 @@ public class GeomBase extends Application {
 	},
 
 	new Primitive("xdump", 0) {
-		public Value invoke(Value args[], int base) {
+		public Value invoke(Value args[], int base, ErrContext cxt) {
 			Name.dumpNames();
 			return Value.nil;
 		}
@@ -35,6 +35,8 @@ import java.io.IOException;
 import java.io.StringReader;
 
 import plugins.Drawable;
+import plugins.ListPrims;
+import plugins.Memo;
 
 import com.ting.escher.Console;
 import com.ting.escher.EvalListener;
@@ -152,6 +154,8 @@ public class GeomLab extends GeomBase {
 
 		try {
 			Session.loadResource("geomlab.gls");
+			Session.installPlugin(ListPrims.class);
+			Session.installPlugin(Memo.class);
 		} catch (CommandException e) {
 			app.errorMessage(e.getMessage(), e.getErrtag());
 		}
@@ -1,9 +1,15 @@
 package geomlab;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import plugins.Drawable;
+import plugins.PNGEncoder;
+import plugins.SoftTablet;
+import plugins.TiledRenderer;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.os.Build;
@@ -74,16 +80,16 @@ public class GraphBox extends Activity {
 		float sqrtAspect = (float) Math.sqrt(aspect);
 		int width = Math.round(meanSize * sqrtAspect);
 		int height = Math.round(meanSize / sqrtAspect);
-/*		BufferedImage image = new BufferedImage(width, height,
-				BufferedImage.TYPE_INT_RGB);
-		Graphics g = image.getGraphics();
-		Graphics2D g2 = (Graphics2D) g;
-		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-				RenderingHints.VALUE_ANTIALIAS_ON);
-		ScreenTablet tablet = new ScreenTablet(g2, slider);
-		pic.draw(tablet, width, height, background);
-		ImageIO.write(image, "png", file);
-*/	}
+		int pixels[] = new TiledRenderer(SoftTablet.backend).render(pic,
+				width, height, slider, background);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(
+				file));
+		try {
+			PNGEncoder.write(pixels, width, height, out);
+		} finally {
+			out.close();
+		}
+	}
 
 	public void setPicture(Drawable val) {
 		// TODO Auto-generated method stub
@@ -8,13 +8,19 @@ import java.net.URL;
 import java.net.URLConnection;
 
 import plugins.ImagePicture;
+import plugins.Raster;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
-public class Image {
+/** A raster image held in an Android Bitmap */
+public class Image implements Raster {
 	public static final int TYPE_INT_RGB = 1;
 	Bitmap bitmap;
 
+	/** Number of times the pixels have been changed, so that caches
+	 *  of scaled copies can tell when they are stale */
+	private int modCount = 0;
+
 	public Image(Bitmap bi) {
 		bitmap = bi;
 //		bitmap = bi.copy(bi.getConfig(), true);
@@ -66,6 +72,41 @@ public class Image {
 
 	public void setRGB(int x, int y, int color) {
 		bitmap.setPixel(x, y, color);
+		modCount++;
+	}
+
+	/** Get a rectangle of pixels: pixel (x+i, y+j) is stored in
+	 *  rgb[off + j*scan + i] */
+	public int[] getRGB(int x, int y, int w, int h, int rgb[], int off,
+			int scan) {
+		if (rgb == null)
+			rgb = new int[off + h * scan];
+		bitmap.getPixels(rgb, off, scan, x, y, w, h);
+		return rgb;
+	}
+
+	/** Set a rectangle of pixels, laid out as for getRGB */
+	public void setRGB(int x, int y, int w, int h, int rgb[], int off,
+			int scan) {
+		bitmap.setPixels(rgb, off, scan, x, y, w, h);
+		modCount++;
+	}
+
+	public int getModCount() {
+		return modCount;
+	}
+
+	/** Get all the pixels, row by row from the top */
+	public int[] getPixels() {
+		int w = getWidth(), h = getHeight();
+		return getRGB(0, 0, w, h, new int[w * h], 0, w);
+	}
+
+	/** Make an image from pixels laid out as for getPixels */
+	public static Image fromPixels(int rgb[], int w, int h) {
+		Image image = new Image(w, h, TYPE_INT_RGB);
+		image.setRGB(0, 0, w, h, rgb, 0, w);
+		return image;
 	}
 
 }
@@ -47,7 +47,9 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -70,19 +72,49 @@ public class Session {
 	/** Table of loaded plugins */
 	private static Set<String> plugins = new LinkedHashSet<String>(10);
 
+	/** Primitives from plugins that replace library definitions */
+	private static List<Primitive> library = new ArrayList<Primitive>();
+
+	/**
+	 * Install a plugin. Its static field 'primitives' lists new primitives,
+	 * and 'library' lists native versions of frozen library functions, which
+	 * are put in place of the definitions with the same names.
+	 */
 	public static void installPlugin(Class<?> plugin) throws CommandException {
 		if (plugins.contains(plugin.getName()))
 			return;
 
 		plugins.add(plugin.getName());
 		try {
-			Field primField = plugin.getField("primitives");
-			Primitive prims[] = (Primitive[]) primField.get(null);
-			for (Primitive p : prims)
+			for (Primitive p : getPrimitives(plugin, "primitives"))
+				Primitive.register(p);
+			for (Primitive p : getPrimitives(plugin, "library")) {
 				Primitive.register(p);
+				library.add(p);
+			}
 		} catch (Exception e) {
 			throw new CommandException(e.toString(), "#nohelp");
 		}
+		replaceLibrary();
+	}
+
+	private static Primitive[] getPrimitives(Class<?> plugin, String field)
+			throws IllegalAccessException {
+		try {
+			Field primField = plugin.getField(field);
+			return (Primitive[]) primField.get(null);
+		} catch (NoSuchFieldException e) {
+			return new Primitive[0];
+		}
+	}
+
+	/** Replace frozen library definitions by native primitives */
+	private static void replaceLibrary() {
+		for (Primitive p : library) {
+			Name x = Name.find(p.getName());
+			if (x.isFrozen())
+				x.setGlodef(p, null);
+		}
 	}
 
 	/** Load saved session state from a file */
@@ -119,6 +151,7 @@ public class Session {
 						"#badversion");
 
 			plugins.clear();
+			library.clear();
 			Primitive.clearPrimitives();
 
 			Set<String> sessionPlugins = (Set<String>) in.readObject();
@@ -129,6 +162,7 @@ public class Session {
 
 			Scanner.readSyntax(in);
 			Name.readNameTable(in);
+			replaceLibrary();
 		} catch (IOException e) {
 			throw new CommandException("I/O failed while reading " + name
 					+ " - " + e, "#readfail");
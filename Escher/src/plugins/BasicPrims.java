@@ -30,7 +30,9 @@
 
 package plugins;
 
+import funbase.ErrContext;
 import funbase.Primitive;
+import funbase.RandomSource;
 import funbase.Value;
 
 /** Basic primitives for handling numbers, booleans and lists */
@@ -38,42 +40,42 @@ public class BasicPrims {
 
     public static final Primitive primitives[] = {
 	new Primitive("=", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeBoolValue(
 			args[base+0].equals(args[base+1]));
 	    }
 	},
 	
 	new Primitive("<>", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeBoolValue(
 			! args[base+0].equals(args[base+1]));
 	    }
 	},
 	
 	new Primitive("+", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeNumValue(
 			cxt.number(args[base+0]) + cxt.number(args[base+1]));
 	    }
 	},
 	
 	new Primitive("-", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeNumValue(
 			cxt.number(args[base+0]) - cxt.number(args[base+1]));
 	    }
 	},
 	
 	new Primitive("*", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeNumValue(
 			cxt.number(args[base+0]) * cxt.number(args[base+1]));
 	    }
 	},
 	
 	new Primitive("/", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		if (cxt.number(args[base+1]) == 0.0) 
 		    cxt.primFail("division by zero", "#divzero");
 		return Value.makeNumValue(
@@ -82,53 +84,53 @@ public class BasicPrims {
 	},
 	
 	new Primitive("~", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeNumValue(- cxt.number(args[base+0]));
 	    }
 	},
 	
 	new Primitive("<", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeBoolValue(
 			cxt.number(args[base+0]) < cxt.number(args[base+1]));
 	    }
 	},
 	
 	new Primitive("<=", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeBoolValue(
 			cxt.number(args[base+0]) <= cxt.number(args[base+1]));
 	    }
 	},
 	
 	new Primitive(">", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeBoolValue(
 			cxt.number(args[base+0]) > cxt.number(args[base+1]));
 	    }
 	},
 	
 	new Primitive(">=", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeBoolValue(
 			cxt.number(args[base+0]) >= cxt.number(args[base+1]));
 	    }
 	},
 	
 	new Primitive("numeric", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeBoolValue(args[base+0].isNumValue());
 	    }
 	},
 	
 	new Primitive("int", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeNumValue(Math.floor(cxt.number(args[base+0])));
 	    }
 	},
 	
 	new Primitive("sqrt", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		if (cxt.number(args[base+0]) < 0.0) 
 		    cxt.primFail("taking square root of a negative number", 
 				 "#sqrt");
@@ -137,46 +139,56 @@ public class BasicPrims {
 	},
 	
 	new Primitive("sin", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeNumValue(
 			Math.sin(cxt.number(args[base+0]) * Math.PI / 180));
 	    }
 	},
 	
 	new Primitive("cos", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeNumValue(
 			Math.cos(cxt.number(args[base+0]) * Math.PI / 180));
 	    }
 	},
 	
 	new Primitive("tan", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return Value.makeNumValue(
 			Math.tan(cxt.number(args[base+0]) * Math.PI / 180));
 	    }
 	},
 	
 	new Primitive("random", 0) {
-	    public Value invoke(Value args[], int base) {
-		return Value.makeNumValue(Math.random());
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		return Value.makeNumValue(RandomSource.current().nextDouble());
+	    }
+	},
+	
+	new Primitive("seed", 1) {
+	    /* Restart the random numbers from a given seed */
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		double seed = cxt.number(args[base+0]);
+		RandomSource.setCurrent(new RandomSource(
+			Double.doubleToLongBits(seed)));
+		return Value.nil;
 	    }
 	},
 	
 	new Primitive("head", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return cxt.head(args[base+0]);
 	    }
 	},
 	
 	new Primitive("tail", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return cxt.tail(args[base+0]);
 	    }
 	},
 	
 	new Primitive.Constructor(":", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		Value tl = args[base+1];
 		if (! tl.isConsValue() && ! tl.isNilValue()) cxt.expect("list");
 		return cons(args[base+0], tl);
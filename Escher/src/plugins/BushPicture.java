@@ -30,8 +30,12 @@
 
 package plugins;
 
-import java.util.Stack;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
 
+import funbase.ErrContext;
 import funbase.Primitive;
 import funbase.Value;
 
@@ -40,161 +44,303 @@ import funbase.Value;
 public class BushPicture extends Picture {
     private static final long serialVersionUID = 1L;
     
-    protected static float linewidth = 2.0f;
-    protected static float alpha = 10.0f, theta = 20.0f; 
-    private static Tran2D rot, invrot;
-    protected static int palette[];
+    /** Parameters for interpreting commands: they are captured when
+     * each picture is made, so that later calls to bushparams do not
+     * affect it */
+    private static class Params implements Serializable {
+	private static final long serialVersionUID = 1L;
+	
+	final float linewidth, alpha, theta;
+	final int palette[];
+	
+	Params(float linewidth, float alpha, float theta, int palette[]) {
+	    this.linewidth = linewidth;
+	    this.alpha = alpha; this.theta = theta;
+	    this.palette = palette;
+	}
+    }
     
-    static { setColours(20, 0.3f, 0.5f, 0.7f); }
+    private static final Params defaultParams = 
+	new Params(2.0f, 10.0f, 20.0f, makeColours(20, 0.3f, 0.5f, 0.7f));
+    
+    /** Parameters for new pictures, as set by bushparams */
+    private static volatile Params current = defaultParams;
 
     private String commands;
     protected final float xmin, xmax, ymin, ymax;
     
+    /** Parameters for this picture; null in pictures saved before
+     * they were recorded, which get the defaults */
+    private Params params;
+    
+    /** The commands in compiled form, made when needed */
+    private transient Program program;
+    
     public BushPicture(String commands) {
-	super(calcAspect(commands), true);
+	this(commands, current);
+    }
+    
+    private BushPicture(String commands, Params params) {
+	this(commands, params, new Program(commands, params));
+    }
+    
+    private BushPicture(String commands, Params params, Program program) {
+	super(program.aspect(), true);
 	this.commands = commands;
-	xmin = _xmin; xmax = _xmax; 
-	ymin = _ymin; ymax = _ymax;
+	this.params = params;
+	this.program = program;
+	xmin = program.bounds[0]; ymin = program.bounds[1]; 
+	xmax = program.bounds[2]; ymax = program.bounds[3];
     }
-
-    /* A few global variables save a lot of mess.  But yuck, nevertheless. */
-    protected static float _xmin, _xmax, _ymin, _ymax;
-    
-    private static float calcAspect(String commands) {
-	_xmin = _xmax = _ymin = _ymax = 0.0f;
-	
-	for (int j = 0; j <= 10; j++) {
-	    setAngles(j / 10.0f);
-	    interp(commands, new View() {
-		public void move(Vec2D pos, int col, boolean draw) {
-		    _xmin = Math.min(_xmin, pos.x);
-		    _xmax = Math.max(_xmax, pos.x);
-		    _ymin = Math.min(_ymin, pos.y);
-		    _ymax = Math.max(_ymax, pos.y);
-		}
-	    });
-	}
-	
-	_xmin -= 1.0f; _xmax += 1.0f; _ymin -= 1.0f; _ymax += 1.0f;
-	return (_xmax - _xmin)/(_ymax - _ymin);
+    
+    private void readObject(ObjectInputStream stream) 
+		throws IOException, ClassNotFoundException {
+	stream.defaultReadObject();
+	if (params == null) params = defaultParams;
     }
     
     protected void paint(int layer, int c, final Tablet g, final Tran2D t) { 
 	if (layer != DRAW) return;
 	
+	Geometry geom = geometry(g.getSlider());
 	g.save();
-	g.setStroke(linewidth);
-	
-	setAngles(g.getSlider());
-	interp(commands, new View() {
-	    private Vec2D oldpos = new Vec2D(0.0f, 0.0f);
-	    
-	    public void move(Vec2D pos, int col, boolean draw) {
-		Vec2D newpos = 
-		    new Vec2D((pos.x-xmin)/(xmax-xmin),
-			    (pos.y-ymin)/(ymax-ymin));
-			
-		if (draw) {
-		    g.drawLine(oldpos, newpos, palette[col], t);
-		}
-		
-		oldpos = newpos;
-	    }
-	});
-	
+	g.setStroke(params.linewidth);
+	g.drawLines(geom.xy, geom.colors, geom.nsegs,
+		t.scale(1/(xmax-xmin), 1/(ymax-ymin)).translate(-xmin, -ymin));
 	g.restore();
     }
     
-    private static void interp(String commands, View view) {
-	Vec2D pos = new Vec2D(0.0f, 0.0f), dir = new Vec2D(0.0f, 1.0f);
-	int col = 0;
-	Stack<Vec2D> pstack = new Stack<Vec2D>(), dstack = new Stack<Vec2D>();
-	Stack<Integer> hstack = new Stack<Integer>();
-	
-	view.move(pos, col, false);
-	
-	for (int i = 0; i < commands.length(); i++) {
-	    char cmd = commands.charAt(i); 
-	    switch (cmd) {
-	    case 'F':
-	    case 'f':
-		pos = pos.add(dir);
-		view.move(pos, col, (cmd == 'F'));
-		break;
-	    case '+':
-		dir = rot.transform(dir);
-		break;
-	    case '-':
-		dir = invrot.transform(dir);
-		break;
-	    case 'C':
-		col = (col+1) % palette.length;
-		break;
-	    case 'c':
-		col = (col+palette.length-1) % palette.length;
-		break;
-	    case '<':
-		dir = dir.scale(0.9f);
-		break;
-	    case '>':
-		dir = dir.scale(1/0.9f);
-		break;
-	    case '[':
-		pstack.push(pos); 
-		dstack.push(dir);
-		hstack.push(col);
-		break;
-	    case ']':
-		if (pstack.size() > 0) {
-		    pos = pstack.pop();
-		    dir = dstack.pop();
-		    col = hstack.pop();
-		    view.move(pos, col, false);
-		}
-		break;
-	    default:
-		// skip
-	    }
+    /** Steps in the slider for which geometry is cached */
+    private static final int STEPS = 256;
+    
+    /** Number of slider positions to cache for each picture */
+    private static final int NCACHE = 8;
+    
+    /** Geometry for recent slider positions, most recent last */
+    private transient Geometry cache[];
+    
+    /** Get the geometry for a slider value, rounded to a multiple 
+     * of 1/STEPS */
+    synchronized Geometry geometry(float slider) {
+	int step = Math.round(slider * STEPS);
+	if (program == null) program = new Program(commands, params);
+	if (cache == null) cache = new Geometry[NCACHE];
+	
+	int k = 0;
+	while (k < NCACHE && (cache[k] == null || cache[k].step != step)) 
+	    k++;
+	
+	Geometry geom;
+	if (k < NCACHE)
+	    geom = cache[k];
+	else {
+	    // Evict the least recent entry, or an empty slot
+	    geom = program.run((float) step / STEPS, new Geometry(step));
+	    k = 0;
 	}
+	
+	// Move the entry to the end
+	System.arraycopy(cache, k+1, cache, k, NCACHE-1-k);
+	cache[NCACHE-1] = geom;
+	return geom;
     }
     
-    private interface View {
-	public void move(Vec2D pos, int col, boolean draw);
+    /** The lines drawn for a particular slider value, as (x, y) 
+     * pairs for the two ends of each line and a colour */
+    private static class Geometry {
+	final int step;
+	float xy[] = new float[64];
+	int colors[] = new int[16];
+	int nsegs = 0;
+	
+	Geometry(int step) {
+	    this.step = step;
+	}
+	
+	void add(float x0, float y0, float x1, float y1, int color) {
+	    if (nsegs == colors.length) {
+		colors = Arrays.copyOf(colors, 2*nsegs);
+		xy = Arrays.copyOf(xy, 8*nsegs);
+	    }
+	    xy[4*nsegs] = x0; xy[4*nsegs+1] = y0;
+	    xy[4*nsegs+2] = x1; xy[4*nsegs+3] = y1;
+	    colors[nsegs++] = color;
+	}
     }
     
-    /** Set the angles used for + and - commands */
-    public static void setAngles(float t) {
-	rot = Tran2D.identity.rotate(alpha - (2 * t - 1.0f) * theta);
-	invrot = Tran2D.identity.rotate(- alpha - (2 * t - 1.0f) * theta);
+    /** A command string compiled into an array of operations, with
+     * runs of the same command collapsed into one operation and a 
+     * repeat count.  Characters that are not commands are dropped. */
+    private static class Program {
+	private static final byte MOVE = 0, LINE = 1, LEFT = 2, RIGHT = 3,
+	    NEXTCOL = 4, PREVCOL = 5, SHRINK = 6, GROW = 7, 
+	    PUSH = 8, POP = 9;
+	
+	private static final String codes = "fF+-Cc<>[]";
+	
+	private final Params params;
+	private byte ops[];
+	private int reps[];
+	private int nops = 0;
+	
+	/** Greatest depth of nesting of [ and ] */
+	private int depth = 0;
+	
+	/** Bounding box { xmin, ymin, xmax, ymax } for all slider values */
+	final float bounds[] = new float[4];
+	
+	Program(String commands, Params params) {
+	    this.params = params;
+	    ops = new byte[16]; reps = new int[16];
+	    int d = 0;
+	    for (int i = 0; i < commands.length(); i++) {
+		int op = codes.indexOf(commands.charAt(i));
+		if (op < 0) continue;
+		if (op == PUSH) depth = Math.max(depth, ++d);
+		if (op == POP && d > 0) d--;
+		
+		/* Pushes and pops are not merged, because a pop does 
+		 * nothing when the stack is empty */
+		if (nops > 0 && ops[nops-1] == op 
+			&& op != PUSH && op != POP) {
+		    reps[nops-1]++;
+		    continue;
+		}
+		
+		if (nops == ops.length) {
+		    ops = Arrays.copyOf(ops, 2*nops);
+		    reps = Arrays.copyOf(reps, 2*nops);
+		}
+		ops[nops] = (byte) op; reps[nops] = 1;
+		nops++;
+	    }
+	    
+	    for (int j = 0; j <= 10; j++) run(j / 10.0f, null);
+	    bounds[0] -= 1.0f; bounds[1] -= 1.0f; 
+	    bounds[2] += 1.0f; bounds[3] += 1.0f;
+	}
+	
+	float aspect() {
+	    return (bounds[2] - bounds[0])/(bounds[3] - bounds[1]);
+	}
+	
+	/** Run the program with a given slider value, adding lines to
+	 * geom.  If geom is null, extend the bounding box instead. */
+	Geometry run(float slider, Geometry geom) {
+	    float alpha = params.alpha, theta = params.theta;
+	    int palette[] = params.palette;
+	    float a = alpha - (2 * slider - 1.0f) * theta;
+	    float b = - alpha - (2 * slider - 1.0f) * theta;
+	    float ca = Vec2D.cosd(a), sa = Vec2D.sind(a);
+	    float cb = Vec2D.cosd(b), sb = Vec2D.sind(b);
+	    int ncols = palette.length;
+	    
+	    float x = 0.0f, y = 0.0f, dx = 0.0f, dy = 1.0f;
+	    int col = 0;
+	    float stack[] = new float[4*depth];
+	    int hstack[] = new int[depth];
+	    int sp = 0;
+	    
+	    for (int i = 0; i < nops; i++) {
+		int n = reps[i];
+		switch (ops[i]) {
+		case MOVE:
+		case LINE:
+		    for (int k = 0; k < n; k++) {
+			float x1 = x + dx, y1 = y + dy;
+			if (geom == null) 
+			    extend(x1, y1);
+			else if (ops[i] == LINE)
+			    geom.add(x, y, x1, y1, palette[col]);
+			x = x1; y = y1;
+		    }
+		    break;
+		case LEFT:
+		    for (int k = 0; k < n; k++) {
+			float t = ca * dx - sa * dy;
+			dy = sa * dx + ca * dy; dx = t;
+		    }
+		    break;
+		case RIGHT:
+		    for (int k = 0; k < n; k++) {
+			float t = cb * dx - sb * dy;
+			dy = sb * dx + cb * dy; dx = t;
+		    }
+		    break;
+		case NEXTCOL:
+		    col = (col + n) % ncols;
+		    break;
+		case PREVCOL:
+		    col = ((col - n) % ncols + ncols) % ncols;
+		    break;
+		case SHRINK:
+		    for (int k = 0; k < n; k++) {
+			dx = dx * 0.9f; dy = dy * 0.9f;
+		    }
+		    break;
+		case GROW:
+		    for (int k = 0; k < n; k++) {
+			dx = dx * (1/0.9f); dy = dy * (1/0.9f);
+		    }
+		    break;
+		case PUSH:
+		    stack[4*sp] = x; stack[4*sp+1] = y;
+		    stack[4*sp+2] = dx; stack[4*sp+3] = dy;
+		    hstack[sp++] = col;
+		    break;
+		case POP:
+		    if (sp > 0) {
+			sp--;
+			x = stack[4*sp]; y = stack[4*sp+1];
+			dx = stack[4*sp+2]; dy = stack[4*sp+3];
+			col = hstack[sp];
+		    }
+		    break;
+		}
+	    }
+	    
+	    return geom;
+	}
+	
+	private void extend(float x, float y) {
+	    bounds[0] = Math.min(bounds[0], x); 
+	    bounds[1] = Math.min(bounds[1], y);
+	    bounds[2] = Math.max(bounds[2], x); 
+	    bounds[3] = Math.max(bounds[3], y);
+	}
     }
     
-    /** Set the palette of colours accessed by C and c commands */
-    public static void setColours(int ncols, 
+    /** Make a palette of colours accessed by C and c commands */
+    private static int[] makeColours(int ncols, 
 	    float inithue, float sat, float val) {
-	palette = new int[ncols];
-	for (int c = 0; c < ncols; c++)
-	    palette[c] = 
-		RGB.fromHSB(inithue + (float) c / ncols, sat, val);
+	float hsb[] = new float[3*ncols];
+	for (int c = 0; c < ncols; c++) {
+	    hsb[3*c] = inithue + (float) c / ncols;
+	    hsb[3*c+1] = sat; hsb[3*c+2] = val;
+	}
+	int palette[] = new int[ncols];
+	RGB.fromHSB(hsb, palette, ncols);
+	return palette;
     }
     
     public static final Primitive primitives[] = {
 	new Primitive("bush", 1) {
 	    /* Create a fractal picture from a string of commands */
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return new BushPicture(cxt.string(args[base+0]));
 	    }	    
 	},
 	
 	new Primitive("bushparams", 7) {
 	    /* Set parameters used to interpret commands */
-	    public Value invoke(Value args[], int base) {
-		linewidth = (float) cxt.number(args[base+0]);
-		alpha = (float) cxt.number(args[base+1]);
-		theta = (float) cxt.number(args[base+2]);
-		setColours((int) cxt.number(args[base+3]),
-			(float) cxt.number(args[base+4]), 
-			(float) cxt.number(args[base+5]), 
-			(float) cxt.number(args[base+6]));
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		current = new Params((float) cxt.number(args[base+0]),
+			(float) cxt.number(args[base+1]),
+			(float) cxt.number(args[base+2]),
+			makeColours((int) cxt.number(args[base+3]),
+				(float) cxt.number(args[base+4]), 
+				(float) cxt.number(args[base+5]), 
+				(float) cxt.number(args[base+6])));
 		return Value.nil;
 	    }
 	}
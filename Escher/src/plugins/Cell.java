@@ -32,6 +32,7 @@ package plugins;
 
 import java.io.PrintWriter;
 
+import funbase.ErrContext;
 import funbase.Evaluator;
 import funbase.Primitive;
 import funbase.Value;
@@ -56,14 +57,14 @@ public class Cell extends Value {
     public static final Primitive primitives[] = {
 	new Primitive("new", 1) {
 	    /** Allocate and initialize a new cell */
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return new Cell(args[base+0]);
 	    }
 	},
 
 	new Primitive("!", 1) {
 	    /** Fetch the contents of a cell */
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		try {
 		    Cell x = (Cell) args[base+0];
 		    return x.contents;
@@ -77,7 +78,7 @@ public class Cell extends Value {
 
 	new Primitive(":=", 2) {
 	    /** Change the contents of a cell */
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		try {
 		    Cell x = (Cell) args[base+0];
 		    return (x.contents = args[base+1]);
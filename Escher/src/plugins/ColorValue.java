@@ -32,6 +32,7 @@ package plugins;
 
 import java.io.PrintWriter;
 
+import funbase.ErrContext;
 import funbase.Evaluator;
 import funbase.Primitive;
 import funbase.Value;
@@ -63,9 +64,84 @@ public class ColorValue extends Value {
     public ColorValue(int rgb) {
 	Evaluator.countCons();
 	this.rgb = rgb;
-	r = ((rgb >> 16) & 0xff)/255.0;
-	g = ((rgb >> 8) & 0xff)/255.0;
-	b = (rgb & 0xff)/255.0;
+	r = unit[(rgb >> 16) & 0xff];
+	g = unit[(rgb >> 8) & 0xff];
+	b = unit[rgb & 0xff];
+    }
+    
+    /** The values k/255, for unpacking colours without dividing */
+    private static final double unit[] = new double[256];
+    
+    /** Shared number values for the same, for pattern matching */
+    private static final Value channel[] = new Value[256];
+    
+    static {
+	for (int k = 0; k < 256; k++) {
+	    unit[k] = k/255.0;
+	    channel[k] = Value.makeNumValue(unit[k]);
+	}
+    }
+    
+    /** Number value for a component, shared if possible */
+    private static Value channelValue(double x) {
+	int k = (int) Math.round(x * 255.0);
+	if (k >= 0 && k < 256 && unit[k] == x) return channel[k];
+	return Value.makeNumValue(x);
+    }
+    
+    /* Scripts that compute images usually use the same few colours over
+     * and over, so recently made colours are kept in a small table
+     * indexed by a hash of the RGB value, and returned again instead
+     * of making a new object.  Colours are immutable, so a race
+     * between threads can at worst lose an entry. */
+    
+    private static final int CACHEBITS = 12;
+    private static final ColorValue cache[] = new ColorValue[1 << CACHEBITS];
+    
+    private static int slot(int rgb) {
+	return (rgb * 0x9e3779b1) >>> (32 - CACHEBITS);
+    }
+    
+    /** Make a colour from components in [0, 1], sharing an existing
+     * one if possible */
+    public static ColorValue make(double rf, double gf, double bf) {
+	double r = cutoff(rf), g = cutoff(gf), b = cutoff(bf);
+	int rgb = (Math.round(255.0f * (float) r) << 16) 
+	    + (Math.round(255.0f * (float) g) << 8) 
+	    + Math.round(255.0f * (float) b);
+	int k = slot(rgb);
+	ColorValue c = cache[k];
+	if (c != null && c.r == r && c.g == g && c.b == b) return c;
+	c = new ColorValue(r, g, b);
+	cache[k] = c;
+	return c;
+    }
+    
+    /** Make a colour from a packed RGB value, sharing an existing one
+     * if possible */
+    public static ColorValue fromRGB(int rgb) {
+	int k = slot(rgb);
+	ColorValue c = cache[k];
+	if (c != null && c.rgb == rgb && c.r == unit[(rgb >> 16) & 0xff]
+		&& c.g == unit[(rgb >> 8) & 0xff] && c.b == unit[rgb & 0xff])
+	    return c;
+	c = new ColorValue(rgb);
+	cache[k] = c;
+	return c;
+    }
+    
+    /** Colours are equal if their components are, since a colour may
+     * or may not be shared with others that have the same value */
+    @Override
+    public boolean equals(Object a) {
+	if (! (a instanceof ColorValue)) return false;
+	ColorValue c = (ColorValue) a;
+	return (r == c.r && g == c.g && b == c.b);
+    }
+    
+    @Override
+    public int hashCode() {
+	return rgb & 0xffffff;
     }
     
     public int asColor() { 
@@ -92,17 +168,17 @@ public class ColorValue extends Value {
     public static final Primitive primitives[] =  {
 	new Primitive.Constructor("rgb", 3) {
 	    /* Create a colour from RGB values in the range [0, 1] */
-	    public Value invoke(Value args[], int base) {
-		return new ColorValue(cxt.number(args[base+0]),
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		return ColorValue.make(cxt.number(args[base+0]),
 			cxt.number(args[base+1]), cxt.number(args[base+2]));
 	    }
 	    
 	    public boolean match(Value obj, Value args[], int base) {
 		try {
 		    ColorValue v = (ColorValue) obj;
-		    args[base+0] = Value.makeNumValue(v.r);
-		    args[base+1] = Value.makeNumValue(v.g);
-		    args[base+2] = Value.makeNumValue(v.b);
+		    args[base+0] = channelValue(v.r);
+		    args[base+1] = channelValue(v.g);
+		    args[base+2] = channelValue(v.b);
 		    return true;
 		}
 		catch (ClassCastException _) {
@@ -113,12 +189,12 @@ public class ColorValue extends Value {
 	
 	new Primitive("hsv", 3) {
 	    /* Create a colour from HSV values in the range [0, 1] */
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		int rgb = RGB.fromHSB(
 			(float) cxt.number(args[base+0]),
 			(float) cutoff(cxt.number(args[base+1])),
 			(float) cutoff(cxt.number(args[base+2])));
-		return new ColorValue(rgb);
+		return ColorValue.fromRGB(rgb);
 	    }
 	}
     };
@@ -75,7 +75,6 @@ public class ContValue extends Function {
 	    @Override
 	    public Result apply(Value args[], int base, int nargs, 
 		    ErrContext cxt, Continuation k) {
-		this.cxt = cxt;
 		Value f = args[base+0];
 		Value argv[] = new Value[] { new ContValue(k.copy()) };
 		return f.apply(argv, 0, 1, cxt, k);
@@ -27,45 +27,39 @@
  * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
  * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  */
-
 package plugins;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.Writer;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.OutputStream;
 
+import funbase.ErrContext;
 import funbase.Primitive;
 import funbase.Value;
-import geomlab.Image;
 
 
 /** Picture context that outputs Encapsulated PostScript */
-public class EPSWrite extends Tablet {
-
-    private PrintWriter pr;
+public class EPSWrite extends VectorWriter {
 
-    public EPSWrite(float width, float height, float slider, Writer out) {
-	super(slider);
-	this.pr = new PrintWriter(out);
+    public EPSWrite(float width, float height, float slider, 
+	    OutputStream out) {
+	super(slider, out);
 
-	pr.printf("%%!PS-Adobe-2.0 EPSF-1.2\n");
-	pr.printf("%%%%BoundingBox: %d %d %d %d\n", 0, 0,
-		(int) Math.ceil(width), (int) Math.ceil(height));
-	pr.printf("50 dict begin\n");
+	put("%!PS-Adobe-2.0 EPSF-1.2\n");
+	put("%%BoundingBox: 0 0 ").put((long) Math.ceil(width)).put(' ')
+	    .put((long) Math.ceil(height)).put('\n');
+	put("50 dict begin\n");
 	
-	for (String line : prelude) pr.println(line);
+	for (String line : prelude) put(line).put('\n');
 	
-	pr.printf("/palette [");
+	put("/palette [");
 	for (int i = 0; i < 4; i++) {
 	    int c = palette[i];
-	    pr.printf(" [ %.3f %.3f %.3f ]", RGB.red(c)/255.0f,
-		    RGB.green(c)/255.0f, RGB.blue(c)/255.0f);
+	    put(" [ ").put(RGB.red(c)/255.0f).put(' ')
+		.put(RGB.green(c)/255.0f).put(' ')
+		.put(RGB.blue(c)/255.0f).put(" ]");
 	}
-	pr.printf(" ] def\n");
+	put(" ] def\n");
     }
 
     private String prelude[] = {
@@ -73,6 +67,10 @@ public class EPSWrite extends Tablet {
 	"1 setlinecap",
 	"1 setlinejoin",
 
+	// abbreviations for path construction
+	"/m { moveto } bind def",
+	"/l { lineto } bind def",
+
 	// colidx stores the colour index when filling a tile
 	"/colidx 0 def",
 	
@@ -110,123 +108,120 @@ public class EPSWrite extends Tablet {
     };
 
     public void close() {
-	pr.printf("showpage\n");
-	pr.printf("end\n");
-	pr.close();
+	put("showpage\n");
+	put("end\n");
+	finish();
     }
 
     private void writeColor(int color) {
 	int r = RGB.red(color);
 	if (RGB.green(color) == r && RGB.blue(color) == r)
-	    pr.printf("%.3f setgray\n", r/255.0f);
+	    put(r/255.0f).put(" setgray\n");
 	else
-	    pr.printf("%.3f %.3f %.3f setrgbcolor\n", r/255.0f,
-		    RGB.green(color)/255.0f, RGB.blue(color)/255.0f);
+	    put(r/255.0f).put(' ').put(RGB.green(color)/255.0f).put(' ')
+		.put(RGB.blue(color)/255.0f).put(" setrgbcolor\n");
+    }
+
+    /** Write points a up to b of a packed array as a subpath */
+    private void writeSubpath(float xy[], int a, int b, int places) {
+	putPoints(xy, a, b, places, "m", "l");
     }
 
     private void writePolygon(Vec2D[] points, Tran2D t) {
-	pr.printf("newpath\n");
-	String cmd = "moveto";
-	for (int i = 0; i < points.length; i++) {
-	    Vec2D v = t.transform(points[i]);
-	    pr.printf("  %.6f %.6f %s\n", v.x, v.y, cmd);
-	    cmd = "lineto";
-	}
+	put("newpath\n");
+	writeSubpath(transformPoints(points, t), 0, points.length, 3);
     }
 
     private Tran2D currTrans = null;
 
     private void writeTransform(Tran2D t) {
 	if (currTrans == t)
-	    pr.printf("usetransform\n");
+	    put("usetransform\n");
 	else {
-	    Vec2D u = t.getXaxis(), v = t.getYaxis(), r = t.getOrigin();
-	    pr.printf("%.3f %.3f %.3f %.3f %.3f %.3f settransform\n",
-		    u.x, u.y, v.x, v.y, r.x, r.y);
+	    put(t.xx()).put(' ').put(t.yx()).put(' ')
+		.put(t.xy()).put(' ').put(t.yy()).put(' ')
+		.put(t.x()).put(' ').put(t.y()).put(" settransform\n");
 	    currTrans = t;
 	}
     }
     
-    public void drawImage(Image image, Tran2D t) {
+    public void drawImage(Raster image, Tran2D t) {
 	// See Red Book, page 310
 	
 	int w = image.getWidth(), h = image.getHeight();
-	pr.printf("/buf %d string def\n", 3*w);
+	put("/buf ").put(3*w).put(" string def\n");
 	writeTransform(t);
-	pr.printf("%d %d 8\n", w, h);
-	pr.printf("[ %d 0 0 %d 0 %d ]\n", w, -h, h);
-	pr.printf("{ currentfile buf readhexstring pop }\n");
-	pr.printf("false 3\n");
-	pr.printf("colorimage\n");
+	put(w).put(' ').put(h).put(" 8\n");
+	put("[ ").put(w).put(" 0 0 ").put(-h).put(" 0 ").put(h).put(" ]\n");
+	put("{ currentfile buf readhexstring pop }\n");
+	put("false 3\n");
+	put("colorimage\n");
 	
 	for (int y = 0; y < h; y++) {
 	    for (int x = 0; x < w; x++) {
-		if (x > 0 && x % 24 == 0) pr.printf("\n");
-		pr.printf("%06x", image.getRGB(x, y) & 0xffffff);
+		if (x > 0 && x % 24 == 0) put('\n');
+		putHex(image.getRGB(x, y), 6);
 	    }
-	    pr.printf("\n");
+	    put('\n');
 	}
-	pr.printf("resettransform\n");
+	put("resettransform\n");
     }
 
     public void drawLine(Vec2D from, Vec2D to, int color, Tran2D t) {
 	writeColor(color);
 	Vec2D a = t.transform(from), b = t.transform(to);
-	pr.printf("newpath %.3f %.3f moveto %.3f %.3f lineto stroke\n",
-		a.x, a.y, b.x, b.y);
+	put("newpath ").put(a.x).put(' ').put(a.y).put(" m ")
+	    .put(b.x).put(' ').put(b.y).put(" l stroke\n");
     }
 
-    private Set<Integer> knownTiles = new HashSet<Integer>(50);
-
     /** Draw a tile.  Each kind of tile is saved as a pair of PostScript 
      * procedures so as to reduce the size of the file. */
     @Override
     public void drawTile(TilePicture tile, int layer, int col, Tran2D t) {
-	int id = tile.tileid;
-	Vec2D strokes[][] = tile.strokes, outlines[][] = tile.outlines;
-	int colours[] = tile.colours;
+	int id = findTile(tile);
 	
-	if (! knownTiles.contains(id)) {
+	if (id < 0) {
+	    id = addTile(tile);
+	    
 	    /* Carefully apply the transform to the path but not to the
 	     * pen used to draw it. */
-	    pr.printf("/drawt%d { 0 setgray\n", id);
-	    for (int i = 0; i < strokes.length; i++) {
-		pr.printf("usetransform\n");
-		writePolygon(strokes[i], Tran2D.identity);
-		pr.printf("resettransform stroke\n");
-	    }
-	    pr.printf("} bind def\n");
+	    float xy[] = tile.strokeCoords;
+	    int offsets[] = tile.strokeOffsets;
+	    put("/drawt").put(id).put(" { 0 setgray usetransform newpath\n");
+	    for (int i = 0; i+1 < offsets.length; i++)
+		writeSubpath(xy, offsets[i], offsets[i+1], 4);
+	    put("resettransform stroke } bind def\n");
 	
-	    pr.printf("/fillt%d { /colidx exch def\n", id);
-	    for (int i = 0; i < outlines.length; i++) {
-		pr.printf("usetransform\n");
-		writePolygon(outlines[i], Tran2D.identity);
-		pr.printf("resettransform\n");
+	    /* Filling does not depend on the transform, so the whole
+	     * procedure can run with the tile's transform in force. */
+	    xy = tile.outlineCoords;
+	    offsets = tile.outlineOffsets;
+	    int colours[] = tile.colours;
+	    put("/fillt").put(id).put(" { /colidx exch def usetransform\n");
+	    for (int i = 0; i+1 < offsets.length; i++) {
+		put("newpath\n");
+		writeSubpath(xy, offsets[i], offsets[i+1], 4);
 
 		int spec = colours[i];
 		if (RGB.isColor(spec)) {
 		    writeColor(spec);
-		    pr.printf("fill\n");
-		}
-		else {
-		    if (col < 0) continue;
-		    pr.printf("%d palettefill\n", spec);
+		    put("fill\n");
 		}
+		else
+		    put(spec).put(" palettefill\n");
 	    }
-	    pr.printf("} bind def\n");
-	
-	    knownTiles.add(id);
+	    put("resettransform } bind def\n");
 	}
 	
 	writeTransform(t);
 
 	switch (layer) {
 	case Picture.DRAW:
-	    pr.printf("drawt%d\n", id);
+	    put("drawt").put(id).put('\n');
 	    break;
 
 	case Picture.FILL:
-	    pr.printf("%d fillt%d\n", col, id);
+	    put(col).put(" fillt").put(id).put('\n');
 	    break;
 	}
     }
@@ -244,8 +239,8 @@ public class EPSWrite extends Tablet {
 	
 	float x = 0, y = 0, dir = 0;
 
-	pr.printf("newpath\n");
-	pr.printf("  %.6f %.6f moveto\n", x, y);
+	put("newpath\n");
+	put("  ").put(x, 6).put(' ').put(y, 6).put(" m\n");
 	
 	for (TurtlePicture.Command cmd : pic.commands) {
 	    switch (cmd.kind) {
@@ -253,9 +248,8 @@ public class EPSWrite extends Tablet {
 		    float a = cmd.arg;
 		    float xc = x - R * Vec2D.sind(dir);
 		    float yc = y + R * Vec2D.cosd(dir);
-		    String op = (a >= 0 ? "arc" : "arcn");
-		    pr.printf("  %.6f %.6f %.6f %.6f %.6f %s\n", 
-			    xc, yc, R, dir-90, dir-90+a, op);
+		    writeArc(xc, yc, R, dir-90, dir-90+a, 
+			    (a >= 0 ? "arc" : "arcn"));
 		    x = xc + R * Vec2D.sind(dir+a); 
 		    y = yc - R * Vec2D.cosd(dir+a);
 		    dir += a;
@@ -266,9 +260,8 @@ public class EPSWrite extends Tablet {
 		    float a = cmd.arg;
 		    float xc = x + R * Vec2D.sind(dir);
 		    float yc = y - R * Vec2D.cosd(dir);
-		    String op = (a >= 0 ? "arcn" : "arc");
-		    pr.printf("  %.6f %.6f %.6f %.6f %.6f %s\n", 
-			    xc, yc, R, dir+90, dir+90-a, op);
+		    writeArc(xc, yc, R, dir+90, dir+90-a, 
+			    (a >= 0 ? "arcn" : "arc"));
 		    x = xc - R * Vec2D.sind(dir-a); 
 		    y = yc + R * Vec2D.cosd(dir-a);
 		    dir -= a;
@@ -278,29 +271,37 @@ public class EPSWrite extends Tablet {
 		case TurtlePicture.Command.AHEAD:
 		    x += cmd.arg * Vec2D.cosd(dir); 
 		    y += cmd.arg * Vec2D.sind(dir);
-		    pr.printf("  %.6f %.6f lineto\n", x, y);
+		    put("  ").put(x, 6).put(' ').put(y, 6).put(" l\n");
 		    break;
 	    }
 	}
 	
-	pr.printf("0 setgray\n");
-	pr.printf("resettransform stroke\n");
+	put("0 setgray\n");
+	put("resettransform stroke\n");
 	this.restore();
     }
 
+    private void writeArc(float xc, float yc, float r, 
+	    float a0, float a1, String op) {
+	put("  ").put(xc, 6).put(' ').put(yc, 6).put(' ').put(r, 6)
+	    .put(' ').put(a0, 6).put(' ').put(a1, 6).put(' ')
+	    .put(op).put('\n');
+    }
+
     public void drawArc(Vec2D centre, float xrad, float yrad,
 	    float start, float extent, int color, Tran2D t) {
 	writeColor(color);
 	writeTransform(t.translate(centre.x, centre.y).scale(xrad, yrad));
-	String op = (extent >= 0 ? "arc": "arcn");
-	pr.printf("newpath 0 0 1 %d %d %s\n", start, start+extent, op);
-	pr.printf("resettransform stroke\n");
+	put("newpath");
+	writeArc(0, 0, 1, start, start+extent, 
+		(extent >= 0 ? "arc": "arcn"));
+	put("resettransform stroke\n");
     }
 
     public void drawStroke(Vec2D[] stroke, Tran2D t) {
-	pr.printf("0 setgray\n");
+	put("0 setgray\n");
 	writePolygon(stroke, t);
-	pr.printf("stroke\n");
+	put("stroke\n");
     }
 
     public void fillOutline(Vec2D[] outline, int color, Tran2D t) {
@@ -308,36 +309,61 @@ public class EPSWrite extends Tablet {
 	
 	if (outline == Picture.unitsquare) {
 	    writeTransform(t);
-	    pr.printf("unitsquare fill resettransform\n");
+	    put("unitsquare fill resettransform\n");
 	    return;
 	}
 	
 	writePolygon(outline, t);
-	pr.printf("fill\n");
+	put("fill\n");
+    }
+
+    /** Fill a batch of polygons, setting the colour only when it
+     * changes */
+    public void fillOutlines(float coords[], int offsets[], 
+	    int specs[], int col, Tran2D t) {
+	int n = offsets[offsets.length-1];
+	float xy[] = transformPoints(coords, n, t);
+	int prev = RGB.TRANSPARENT;
+	for (int i = 0; i+1 < offsets.length; i++) {
+	    int color = fillColor(specs[i], col);
+	    if (color == RGB.TRANSPARENT) continue;
+	    if (color != prev) writeColor(color);
+	    prev = color;
+	    put("newpath\n");
+	    writeSubpath(xy, offsets[i], offsets[i+1], 3);
+	    put("fill\n");
+	}
+    }
+
+    /** Draw a batch of strokes as a single path */
+    public void drawStrokes(float coords[], int offsets[], Tran2D t) {
+	if (offsets.length <= 1) return;
+	int n = offsets[offsets.length-1];
+	float xy[] = transformPoints(coords, n, t);
+	put("0 setgray\nnewpath\n");
+	for (int i = 0; i+1 < offsets.length; i++)
+	    writeSubpath(xy, offsets[i], offsets[i+1], 3);
+	put("stroke\n");
     }
     
     public void restore() {
-	pr.printf("grestore\n");
+	put("grestore\n");
     }
 
     public void save() {
-	pr.printf("gsave\n");
+	put("gsave\n");
     }
 
     public void setStroke(float width) {
 	final float factor = 2.0f;
-	pr.printf("%.3f setlinewidth\n", width/factor);
-    }
-
-    public boolean isTiny(Tran2D t) {
-	return t.isTiny(0.5f);
+	put(width/factor).put(" setlinewidth\n");
     }
     
     public static final Primitive primitives[] =  {
 	/** Save a picture as Encapsulated PostScript */
 	new Picture.PicturePrimitive("epswrite", 4) {
-	    public Value invoke(Value args[], int base) {
-		Picture pic = picture(args[base+0]);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Picture pic = picture(args[base+0], cxt);
 		String fname = cxt.string(args[base+1]);
 		float meanSize = (float) cxt.number(args[base+2]);
 		float greyLevel = (float) cxt.number(args[base+3]);
@@ -351,16 +377,12 @@ public class EPSWrite extends Tablet {
 		float height = meanSize / sqrtAspect;		
 		
 		try {
-		    final Writer out = 
-			new BufferedWriter(new FileWriter(fname));
-		    Tablet g = new EPSWrite(width, height, 0.5f, out);
+		    OutputStream out = new FileOutputStream(fname);
+		    VectorWriter g = new EPSWrite(width, height, 0.5f, out);
 		    Tran2D t = Tran2D.identity.scale(width, height);
-		    
-		    g.fillOutline(Picture.unitsquare, background, t);
-		    pic.paintPart(Picture.FILL, -1, g, t);
-		    pic.paintPart(Picture.DRAW, -1, g, t);
-		    
+		    pic.draw(g, t, background);
 		    g.close();
+		    if (g.getError() != null) throw g.getError();
 		}
 		catch (IOException e) {
 		    cxt.primFail("I/O failed: " + e.getMessage());
@@ -0,0 +1,186 @@
+package plugins;
+
+import geomlab.GeomBase;
+import geomlab.Image;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** A cache of decoded images, used by the photo and resource
+ *  primitives so that a script that mentions the same photo many
+ *  times decodes it only once.
+ *
+ *  Images are named by URL: file: and asset: are handled directly,
+ *  and anything else is given to java.net.URL.  An image can be
+ *  prefetched, so that it is decoded by a background thread while the
+ *  script carries on; a later request for the same name waits for
+ *  that decoding to finish rather than starting another.  Images are
+ *  discarded least-recently-used first when their total size exceeds
+ *  a budget. */
+public class ImageLoader {
+    /** Limit on the total size of cached images, in bytes */
+    private final long budget;
+
+    private long size = 0;
+    private long hits = 0, misses = 0, decodeTime = 0;
+
+    /** The decoded images, in order of use */
+    private final LinkedHashMap<String, Image> images =
+	new LinkedHashMap<String, Image>(16, 0.75f, true);
+
+    /** Images being decoded in the background */
+    private final Map<String, Future<Image>> pending =
+	new HashMap<String, Future<Image>>();
+
+    private ExecutorService executor = null;
+
+    public ImageLoader(long budget) {
+	this.budget = budget;
+    }
+
+    /** The loader used by the primitives */
+    public static final ImageLoader shared = new ImageLoader(48 << 20);
+
+    /** Fetch an image, decoding it unless it is in the cache or
+     * already being decoded */
+    public Image load(String name) throws IOException {
+	Future<Image> f;
+	synchronized (this) {
+	    Image image = images.get(name);
+	    if (image != null) {
+		hits++;
+		return image;
+	    }
+	    f = pending.get(name);
+	}
+
+	if (f != null) {
+	    try {
+		return f.get();
+	    }
+	    catch (InterruptedException e) {
+		throw new IOException("interrupted while loading " + name);
+	    }
+	    catch (ExecutionException e) {
+		Throwable cause = e.getCause();
+		if (cause instanceof IOException) throw (IOException) cause;
+		throw new IOException(String.valueOf(cause));
+	    }
+	}
+
+	return decode(name);
+    }
+
+    /** Start decoding an image in the background, unless it is in the
+     * cache or already being decoded */
+    public synchronized void prefetch(final String name) {
+	if (images.containsKey(name) || pending.containsKey(name)) return;
+
+	if (executor == null)
+	    executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "ImageLoader");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+
+	pending.put(name, executor.submit(new Callable<Image>() {
+	    public Image call() throws IOException {
+		try {
+		    return decode(name);
+		}
+		finally {
+		    synchronized (ImageLoader.this) {
+			pending.remove(name);
+		    }
+		}
+	    }
+	}));
+    }
+
+    /** Decode an image and add it to the cache */
+    private Image decode(String name) throws IOException {
+	long start = System.nanoTime();
+	Image image = open(name);
+	long time = System.nanoTime() - start;
+
+	synchronized (this) {
+	    misses++;
+	    decodeTime += time;
+	    if (image != null) add(name, image);
+	}
+	return image;
+    }
+
+    /** Open and decode an image, or return null if it cannot be
+     * decoded */
+    private static Image open(String name) throws IOException {
+	InputStream input;
+	if (name.startsWith("asset:")) {
+	    input = GeomBase.getResourceAsStream(name.substring(6));
+	    if (input == null) throw new IOException("no such asset " + name);
+	}
+	else if (name.startsWith("file:"))
+	    input = new FileInputStream(name.substring(5));
+	else
+	    return Image.fromUrl(new URL(name));
+
+	try {
+	    return Image.fromStream(input);
+	}
+	finally {
+	    input.close();
+	}
+    }
+
+    private static long footprint(Image image) {
+	return 4L * image.getWidth() * image.getHeight() + 64;
+    }
+
+    private void add(String name, Image image) {
+	Image old = images.put(name, image);
+	if (old != null) size -= footprint(old);
+	size += footprint(image);
+
+	Iterator<Map.Entry<String, Image>> iter =
+	    images.entrySet().iterator();
+	while (size > budget && images.size() > 1) {
+	    Image victim = iter.next().getValue();
+	    if (victim == image) continue;
+	    iter.remove();
+	    size -= footprint(victim);
+	}
+    }
+
+    /** Discard all cached images */
+    public synchronized void clear() {
+	images.clear();
+	size = 0;
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+
+    /** Total time spent decoding, in milliseconds */
+    public synchronized long getDecodeTime() { return decodeTime / 1000000; }
+
+    @Override
+    public synchronized String toString() {
+	return String.format("%d images, %d bytes; %d hits, %d misses, "
+		+ "%d ms decoding", images.size(), size, hits, misses,
+		decodeTime / 1000000);
+    }
+}
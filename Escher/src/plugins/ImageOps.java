@@ -0,0 +1,382 @@
+package plugins;
+
+import funbase.ErrContext;
+import funbase.Primitive;
+import funbase.Value;
+import geomlab.Image;
+
+/** Image processing operations that work on a whole image at once.
+ *
+ *  Each operation fetches the pixels of its argument into an int
+ *  array, does all its work in Java, and makes a new image from the
+ *  result, so a script pays for one primitive call rather than one
+ *  interpreted call per pixel.  Pixels are ARGB, row by row from the
+ *  top; coordinates given to the primitives count from the bottom
+ *  left, as for 'pixel'. */
+public class ImageOps {
+    private static int clamp(int x, int lo, int hi) {
+	return (x < lo ? lo : x > hi ? hi : x);
+    }
+
+    private static int clamp255(float x) {
+	return (x <= 0.0f ? 0 : x >= 255.0f ? 255 : (int) (x + 0.5f));
+    }
+
+    /** Convolve with a kernel of size kw x kh, given row by row.
+     *  Pixels beyond the edge are taken to be copies of the nearest
+     *  edge pixel.  Alpha is left alone. */
+    public static PixelArray convolve(PixelArray src, float kernel[],
+	    int kw, int kh) {
+	int w = src.width, h = src.height;
+	int in[] = src.pixels;
+	PixelArray dst = new PixelArray(w, h);
+	int out[] = dst.pixels;
+	int cx = kw/2, cy = kh/2;
+
+	for (int y = 0; y < h; y++) {
+	    for (int x = 0; x < w; x++) {
+		float r = 0.0f, g = 0.0f, b = 0.0f;
+		int k = 0;
+		for (int j = 0; j < kh; j++) {
+		    int row = clamp(y+j-cy, 0, h-1) * w;
+		    for (int i = 0; i < kw; i++) {
+			float c = kernel[k++];
+			if (c == 0.0f) continue;
+			int p = in[row + clamp(x+i-cx, 0, w-1)];
+			r += c * RGB.red(p);
+			g += c * RGB.green(p);
+			b += c * RGB.blue(p);
+		    }
+		}
+		out[y*w+x] = (in[y*w+x] & 0xff000000) | (clamp255(r) << 16)
+		    | (clamp255(g) << 8) | clamp255(b);
+	    }
+	}
+
+	return dst;
+    }
+
+    /** One pass of a separable filter, along rows if horiz is true and
+     *  along columns otherwise.  Working with fixed-point weights that
+     *  sum to 1 << 16 keeps the inner loop in integers. */
+    private static void filter1(int in[], int out[], int w, int h,
+	    int weight[], boolean horiz) {
+	int r = weight.length/2;
+	int len = (horiz ? w : h), n = (horiz ? h : w);
+	int step = (horiz ? 1 : w), skip = (horiz ? w : 1);
+
+	for (int m = 0; m < n; m++) {
+	    int base = m * skip;
+	    for (int i = 0; i < len; i++) {
+		int sr = 0, sg = 0, sb = 0, sa = 0;
+		for (int j = -r; j <= r; j++) {
+		    int p = in[base + clamp(i+j, 0, len-1) * step];
+		    int c = weight[j+r];
+		    sa += c * (p >>> 24);
+		    sr += c * ((p >> 16) & 0xff);
+		    sg += c * ((p >> 8) & 0xff);
+		    sb += c * (p & 0xff);
+		}
+		out[base + i*step] = ((sa + 0x8000) >>> 16 << 24)
+		    | ((sr + 0x8000) >>> 16 << 16)
+		    | ((sg + 0x8000) >>> 16 << 8) | ((sb + 0x8000) >>> 16);
+	    }
+	}
+    }
+
+    /** Gaussian blur with standard deviation sigma pixels, done as two
+     *  one-dimensional passes */
+    public static PixelArray blur(PixelArray src, float sigma) {
+	if (sigma <= 0.0f) return src;
+
+	int r = (int) Math.ceil(3 * sigma);
+	float f[] = new float[2*r+1];
+	float sum = 0.0f;
+	for (int i = -r; i <= r; i++) {
+	    f[i+r] = (float) Math.exp(-0.5 * i * i / (sigma * sigma));
+	    sum += f[i+r];
+	}
+
+	// Make the weights sum exactly to 1 << 16, so flat areas keep
+	// their colour
+	int weight[] = new int[2*r+1];
+	int total = 0;
+	for (int i = 0; i < weight.length; i++) {
+	    weight[i] = Math.round(f[i] / sum * 65536);
+	    total += weight[i];
+	}
+	weight[r] += 65536 - total;
+
+	int w = src.width, h = src.height;
+	int tmp[] = new int[w * h];
+	PixelArray dst = new PixelArray(w, h);
+	filter1(src.pixels, tmp, w, h, weight, true);
+	filter1(tmp, dst.pixels, w, h, weight, false);
+	return dst;
+    }
+
+    /** Map colours by a 3 x 4 matrix m, given row by row: each output
+     *  component is a combination of the input red, green and blue on
+     *  a scale of 0 to 1, plus a constant */
+    public static PixelArray colorMatrix(PixelArray src, float m[]) {
+	// A table for each coefficient avoids multiplying in the loop
+	int tab[][] = new int[9][256];
+	for (int k = 0; k < 9; k++) {
+	    float c = m[(k/3)*4 + k%3];
+	    for (int v = 0; v < 256; v++)
+		tab[k][v] = Math.round(c * v * 256);
+	}
+	int off[] = new int[3];
+	for (int k = 0; k < 3; k++)
+	    off[k] = Math.round(m[4*k+3] * 255 * 256) + 128;
+
+	int in[] = src.pixels;
+	PixelArray dst = new PixelArray(src.width, src.height);
+	int out[] = dst.pixels;
+	for (int i = 0; i < in.length; i++) {
+	    int p = in[i];
+	    int r = RGB.red(p), g = RGB.green(p), b = RGB.blue(p);
+	    int r1 = (tab[0][r] + tab[1][g] + tab[2][b] + off[0]) >> 8;
+	    int g1 = (tab[3][r] + tab[4][g] + tab[5][b] + off[1]) >> 8;
+	    int b1 = (tab[6][r] + tab[7][g] + tab[8][b] + off[2]) >> 8;
+	    out[i] = (p & 0xff000000) | (clamp(r1, 0, 255) << 16)
+		| (clamp(g1, 0, 255) << 8) | clamp(b1, 0, 255);
+	}
+	return dst;
+    }
+
+    /** Make pixels white if their luminance is at least level (on a
+     *  scale of 0 to 1) and black otherwise */
+    public static PixelArray threshold(PixelArray src, float level) {
+	// Luminance times 1000, compared with level times 255000
+	int limit = Math.round(level * 255000);
+	int in[] = src.pixels;
+	PixelArray dst = new PixelArray(src.width, src.height);
+	int out[] = dst.pixels;
+	for (int i = 0; i < in.length; i++) {
+	    int p = in[i];
+	    int y = 299 * RGB.red(p) + 587 * RGB.green(p) + 114 * RGB.blue(p);
+	    out[i] = (p & 0xff000000) | (y >= limit ? 0xffffff : 0);
+	}
+	return dst;
+    }
+
+    /** Resize to w x h, by taking the nearest pixel or by bilinear
+     *  interpolation */
+    public static PixelArray resample(PixelArray src, int w, int h,
+	    boolean smooth) {
+	int sw = src.width, sh = src.height;
+	int in[] = src.pixels;
+	PixelArray dst = new PixelArray(w, h);
+	int out[] = dst.pixels;
+
+	if (! smooth) {
+	    int xs[] = new int[w];
+	    for (int x = 0; x < w; x++)
+		xs[x] = (int) ((2L * x + 1) * sw / (2L * w));
+	    for (int y = 0; y < h; y++) {
+		int row = (int) ((2L * y + 1) * sh / (2L * h)) * sw;
+		for (int x = 0; x < w; x++)
+		    out[y*w+x] = in[row + xs[x]];
+	    }
+	    return dst;
+	}
+
+	// Source positions of pixel centres in 16.16 fixed point
+	int x0[] = new int[w], fx[] = new int[w];
+	for (int x = 0; x < w; x++) {
+	    long p = ((2L * x + 1) * sw << 16) / (2L * w) - 0x8000;
+	    p = Math.max(p, 0);
+	    x0[x] = (int) (p >> 16);
+	    fx[x] = (int) (p & 0xffff) >> 8;
+	    if (x0[x] >= sw-1) { x0[x] = sw-1; fx[x] = 0; }
+	}
+
+	for (int y = 0; y < h; y++) {
+	    long q = ((2L * y + 1) * sh << 16) / (2L * h) - 0x8000;
+	    q = Math.max(q, 0);
+	    int y0 = (int) (q >> 16), fy = (int) (q & 0xffff) >> 8;
+	    if (y0 >= sh-1) { y0 = sh-1; fy = 0; }
+	    int row0 = y0 * sw, row1 = (y0 < sh-1 ? row0 + sw : row0);
+
+	    for (int x = 0; x < w; x++) {
+		int a = x0[x], a1 = (a < sw-1 ? a+1 : a);
+		out[y*w+x] = mix(mix(in[row0+a], in[row0+a1], fx[x]),
+			mix(in[row1+a], in[row1+a1], fx[x]), fy);
+	    }
+	}
+	return dst;
+    }
+
+    /** Mix two ARGB pixels in proportion (256-f) : f */
+    private static int mix(int p, int q, int f) {
+	if (f == 0 || p == q) return p;
+	int g = 256 - f;
+	int rb = ((p & 0xff00ff) * g + (q & 0xff00ff) * f) >>> 8 & 0xff00ff;
+	int ag = ((p >>> 8) & 0xff00ff) * g + ((q >>> 8) & 0xff00ff) * f
+	    & 0xff00ff00;
+	return ag | rb;
+    }
+
+    /** Copy a w x h rectangle with top left corner at (x, y) */
+    public static PixelArray crop(PixelArray src, int x, int y, int w, int h) {
+	PixelArray dst = new PixelArray(w, h);
+	for (int j = 0; j < h; j++)
+	    System.arraycopy(src.pixels, (y+j)*src.width + x,
+		    dst.pixels, j*w, w);
+	return dst;
+    }
+
+    /** Draw top over bottom with its top left corner at (x, y), using
+     *  the alpha of top multiplied by opacity */
+    public static PixelArray composite(PixelArray bottom, PixelArray top,
+	    int x, int y, float opacity) {
+	int w = bottom.width, h = bottom.height;
+	PixelArray dst = new PixelArray(w, h, bottom.pixels.clone());
+	int out[] = dst.pixels, in[] = top.pixels;
+	int op = clamp255(opacity * 255.0f);
+
+	int i0 = Math.max(0, -x), i1 = Math.min(top.width, w-x);
+	int j0 = Math.max(0, -y), j1 = Math.min(top.height, h-y);
+	for (int j = j0; j < j1; j++) {
+	    for (int i = i0; i < i1; i++) {
+		int p = in[j*top.width+i];
+		int a = (p >>> 24) * op;
+		a = (a + 1 + (a >> 8)) >> 8;
+		if (a == 0) continue;
+		int k = (y+j)*w + x+i;
+		int q = out[k];
+		if (a == 255) { out[k] = p; continue; }
+
+		// Source over destination, allowing for translucent pixels
+		int qa = q >>> 24;
+		int da = qa * (255 - a) / 255;
+		int ra = a + da;
+		int r = (RGB.red(p) * a + RGB.red(q) * da) / ra;
+		int g = (RGB.green(p) * a + RGB.green(q) * da) / ra;
+		int b = (RGB.blue(p) * a + RGB.blue(q) * da) / ra;
+		out[k] = (ra << 24) | (r << 16) | (g << 8) | b;
+	    }
+	}
+	return dst;
+    }
+
+    // Primitives
+
+    private static PixelArray raster(Value v, ErrContext cxt) {
+	ImagePicture p = cxt.cast(ImagePicture.class, v, "image");
+	return PixelArray.of(p.image);
+    }
+
+    private static Value picture(PixelArray r) {
+	return new ImagePicture(Image.fromPixels(r.pixels, r.width, r.height));
+    }
+
+    /** Fetch a list of numbers into an array */
+    private static float[] numbers(Value xs, ErrContext cxt) {
+	float a[] = new float[cxt.listLength(xs)];
+	for (int i = 0; i < a.length; i++) {
+	    a[i] = (float) cxt.number(cxt.head(xs));
+	    xs = cxt.tail(xs);
+	}
+	return a;
+    }
+
+    public static final Primitive primitives[] = {
+	/** Convolve an image with a kernel given as a list of rows */
+	new Primitive("convolve", 2) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		PixelArray src = raster(args[base+0], cxt);
+		Value rows = args[base+1];
+		int kh = cxt.listLength(rows);
+		float kernel[] = null;
+		int kw = 0;
+		for (int j = 0; j < kh; j++) {
+		    float row[] = numbers(cxt.head(rows), cxt);
+		    if (j == 0) {
+			kw = row.length;
+			kernel = new float[kw * kh];
+		    }
+		    else if (row.length != kw)
+			cxt.primFail("kernel rows must have the same length");
+		    System.arraycopy(row, 0, kernel, j*kw, kw);
+		    rows = cxt.tail(rows);
+		}
+		if (kw == 0) cxt.primFail("kernel must not be empty");
+		return picture(convolve(src, kernel, kw, kh));
+	    }
+	},
+
+	/** Gaussian blur with a given radius in pixels */
+	new Primitive("blur", 2) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		PixelArray src = raster(args[base+0], cxt);
+		float sigma = (float) cxt.number(args[base+1]);
+		if (sigma > 100.0f) cxt.primFail("blur radius is too big");
+		return picture(blur(src, sigma));
+	    }
+	},
+
+	/** Map colours by a list of 12 numbers, giving the coefficients
+	 *  of red, green and blue and a constant for each of red, green
+	 *  and blue in the result */
+	new Primitive("colormatrix", 2) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		PixelArray src = raster(args[base+0], cxt);
+		float m[] = numbers(args[base+1], cxt);
+		if (m.length != 12) cxt.primFail("colour matrix needs 12 numbers");
+		return picture(colorMatrix(src, m));
+	    }
+	},
+
+	new Primitive("threshold", 2) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		PixelArray src = raster(args[base+0], cxt);
+		float level = (float) cxt.number(args[base+1]);
+		return picture(threshold(src, level));
+	    }
+	},
+
+	/** Resize an image, smoothly or not */
+	new Primitive("resample", 4) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		PixelArray src = raster(args[base+0], cxt);
+		int w = (int) cxt.number(args[base+1]);
+		int h = (int) cxt.number(args[base+2]);
+		boolean smooth = cxt.bool(args[base+3]);
+		if (w <= 0 || h <= 0 || (long) w * h > 1 << 24)
+		    cxt.primFail("bad image size");
+		return picture(resample(src, w, h, smooth));
+	    }
+	},
+
+	/** Cut out a rectangle with bottom left corner (x, y) */
+	new Primitive("crop", 5) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		PixelArray src = raster(args[base+0], cxt);
+		int x = (int) cxt.number(args[base+1]);
+		int y = (int) cxt.number(args[base+2]);
+		int w = (int) cxt.number(args[base+3]);
+		int h = (int) cxt.number(args[base+4]);
+		if (x < 0 || y < 0 || w <= 0 || h <= 0
+			|| x+w > src.width || y+h > src.height)
+		    cxt.primFail("crop rectangle is outside the image");
+		return picture(crop(src, x, src.height-y-h, w, h));
+	    }
+	},
+
+	/** Draw one image over another with its bottom left corner at
+	 *  (x, y) and a given opacity */
+	new Primitive("composite", 5) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		PixelArray bottom = raster(args[base+0], cxt);
+		PixelArray top = raster(args[base+1], cxt);
+		int x = (int) cxt.number(args[base+2]);
+		int y = (int) cxt.number(args[base+3]);
+		float opacity = (float) cxt.number(args[base+4]);
+		return picture(composite(bottom, top, x,
+			bottom.height-y-top.height, opacity));
+	    }
+	}
+    };
+}
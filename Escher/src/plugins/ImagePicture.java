@@ -37,14 +37,18 @@ import funbase.Evaluator.EvalException;
 import funbase.Evaluator.Result;
 import funbase.Primitive;
 import funbase.Value;
-import geomlab.Command.CommandException;
 import geomlab.Image;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
-import java.net.URL;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class ImagePicture extends Picture {
     private static final long serialVersionUID = 1L;
@@ -71,44 +75,178 @@ public class ImagePicture extends Picture {
 	g.drawImage(image, t);
     }
     
+    @Override
+    protected int calcAverage(int col, Tablet g) {
+	int w = image.getWidth(), h = image.getHeight();
+	long r = 0, gr = 0, b = 0;
+	for (int y = 0; y < h; y++) {
+	    for (int x = 0; x < w; x++) {
+		int rgb = image.getRGB(x, y);
+		r += RGB.red(rgb); gr += RGB.green(rgb); b += RGB.blue(rgb);
+	    }
+	}
+	long n = Math.max((long) w * h, 1);
+	return RGB.fromRGB((int) (r/n), (int) (gr/n), (int) (b/n));
+    }
+    
+    /** How the pixels are saved: RAW for one int per pixel, as in
+     * old sessions, or DEFLATE for compressed data */
+    private static final int RAW = 0, DEFLATE = 1;
+    
+    /** Format of the saved pixels.  Sessions saved before the format
+     * was recorded have no value for this field, so it reads as RAW. */
+    private int format = DEFLATE;
+    
+    /** Compressed data for images that have been saved.  Saving the
+     * same array for every picture that shares an image lets the
+     * object stream write it once and refer to it after. */
+    private static final Map<Image, Object[]> saved =
+	new WeakHashMap<Image, Object[]>();
+    
+    /** Images that have been loaded, so that pictures that shared an
+     * image when saved share it again */
+    private static final Map<byte[], Image> loaded =
+	new WeakHashMap<byte[], Image>();
+    
     private void writeObject(ObjectOutputStream stream) throws IOException {
+	format = DEFLATE;
 	stream.defaultWriteObject();
 	
 	if (resourceName != null) return;
 
-	int w = image.getWidth(), h = image.getHeight();
 	stream.writeInt(image.getWidth());
 	stream.writeInt(image.getHeight());
-	for (int y = 0; y < h; y++)
-	    for (int x = 0; x < w; x++)
-		stream.writeInt(image.getRGB(x, y));
+	stream.writeObject(compress(image));
     }
     
     private void readObject(ObjectInputStream stream) 
-    		throws IOException, ClassNotFoundException, CommandException {
+    		throws IOException, ClassNotFoundException {
 	stream.defaultReadObject();
 	
 	if (resourceName != null) {
-	    image = Image.fromResource(resourceName);
+	    image = ImageLoader.shared.load("asset:" + resourceName);
 	    return;
 	}
 	
 	int w = stream.readInt();
 	int h = stream.readInt();
-	image = new Image(w, h, Image.TYPE_INT_RGB);
-	for (int y = 0; y < h; y++)
-	    for (int x = 0; x < w; x++)
-		image.setRGB(x, y, stream.readInt());
+	if (format == RAW) {
+	    int pixels[] = new int[w * h];
+	    for (int i = 0; i < pixels.length; i++)
+		pixels[i] = stream.readInt();
+	    image = Image.fromPixels(pixels, w, h);
+	}
+	else {
+	    byte data[] = (byte[]) stream.readObject();
+	    synchronized (loaded) {
+		image = loaded.get(data);
+		if (image == null) {
+		    image = Image.fromPixels(expand(data, w, h), w, h);
+		    loaded.put(data, image);
+		}
+	    }
+	}
+	format = DEFLATE;
+    }
+    
+    /** Compress the pixels of an image, or find the data from last
+     * time if the image has not changed */
+    private static byte[] compress(Image image) {
+	synchronized (saved) {
+	    Object prev[] = saved.get(image);
+	    if (prev != null && (Integer) prev[0] == image.getModCount())
+		return (byte[]) prev[1];
+	}
+
+	int w = image.getWidth(), h = image.getHeight();
+	int pixels[] = image.getPixels();
+	
+	/* Store the bytes A, R, G, B of each pixel as differences from
+	 * the pixel to its left, as in the PNG Sub filter; this makes
+	 * smooth areas of photos compress much better. */
+	byte raw[] = new byte[4 * pixels.length];
+	for (int y = 0; y < h; y++) {
+	    int prev = 0;
+	    for (int x = 0; x < w; x++) {
+		int i = y*w + x, p = pixels[i];
+		raw[4*i] = (byte) ((p >>> 24) - (prev >>> 24));
+		raw[4*i+1] = (byte) ((p >> 16) - (prev >> 16));
+		raw[4*i+2] = (byte) ((p >> 8) - (prev >> 8));
+		raw[4*i+3] = (byte) (p - prev);
+		prev = p;
+	    }
+	}
+	
+	Deflater deflater = new Deflater();
+	deflater.setInput(raw);
+	deflater.finish();
+	ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length/4);
+	byte buf[] = new byte[8192];
+	while (! deflater.finished()) {
+	    int n = deflater.deflate(buf);
+	    out.write(buf, 0, n);
+	}
+	deflater.end();
+	byte data[] = out.toByteArray();
+
+	synchronized (saved) {
+	    saved.put(image, new Object[] { image.getModCount(), data });
+	}
+	return data;
+    }
+    
+    /** Undo the work of compress */
+    private static int[] expand(byte data[], int w, int h) 
+    		throws IOException {
+	byte raw[] = new byte[4 * w * h];
+	Inflater inflater = new Inflater();
+	inflater.setInput(data);
+	try {
+	    int n = 0;
+	    while (n < raw.length && ! inflater.finished()) {
+		int k = inflater.inflate(raw, n, raw.length - n);
+		if (k == 0 && (inflater.needsInput() 
+			    || inflater.needsDictionary()))
+		    break;
+		n += k;
+	    }
+	    if (n < raw.length)
+		throw new IOException("image data is too short");
+	}
+	catch (DataFormatException e) {
+	    throw new IOException("bad image data - " + e.getMessage());
+	}
+	finally {
+	    inflater.end();
+	}
+	
+	int pixels[] = new int[w * h];
+	for (int y = 0; y < h; y++) {
+	    int a = 0, r = 0, g = 0, b = 0;
+	    for (int x = 0; x < w; x++) {
+		int i = y*w + x;
+		a = (a + raw[4*i]) & 0xff;
+		r = (r + raw[4*i+1]) & 0xff;
+		g = (g + raw[4*i+2]) & 0xff;
+		b = (b + raw[4*i+3]) & 0xff;
+		pixels[i] = (a << 24) | (r << 16) | (g << 8) | b;
+	    }
+	}
+	return pixels;
     }
     
     /** A process that controls filling in an image by calling a function
-     	for each pixel. */
+     	for each pixel.  Each call gets a fresh array of arguments, because
+     	a continuation captured in the function may resume a frame that
+     	still reads them.  The results for each row are collected and
+     	stored in the image together. */
     private static class PixelLoop extends Continuation implements Result {
 	private final Image image;
 	private final int width, height;
 	private final Value fun;
 	private final ErrContext cxt;
 	private final Continuation cont;
+	private final int row[];
 	
 	private int x = 0, y = 0;
 	
@@ -121,28 +259,38 @@ public class ImagePicture extends Picture {
 	    this.fun = fun;
 	    this.cxt = cxt;
 	    this.cont = cont;
+	    this.row = new int[width];
 	}
 	
 	public Result resume(Evaluator ev) {
-	    if (y < height) 
-		return fun.apply(new Value[] { Value.makeNumValue(x),
-			Value.makeNumValue(y) }, 0, 2, cxt, this);
+	    if (y < height) {
+		Value args[] = 
+		    { Value.makeNumValue(x), Value.makeNumValue(y) };
+		return fun.apply(args, 0, 2, cxt, this);
+	    }
 	    else
 		return cont.result(new ImagePicture(image));
 	}
 	
 	public Result result(Value v) {
 	    try {
-		int rgb = ((ColorValue) v).rgb;
-		image.setRGB(x, height-y-1, rgb);
+		row[x] = ((ColorValue) v).rgb;
 	    }
 	    catch (ClassCastException _) {
 		throw new EvalException("'funpic' expects a colour", cxt);
 	    }
 
-	    if (++x >= width) { x = 0; y++; }
+	    if (++x >= width) {
+		image.setRGB(0, height-y-1, width, 1, row, 0, width);
+		x = 0; y++; 
+	    }
 	    return this;
 	}
+
+	@Override
+	public long stackSize() {
+	    return cont.stackSize();
+	}
     }
     
     public static Value fromResource(String name) {
@@ -156,12 +304,12 @@ public class ImagePicture extends Picture {
     
     public static final Primitive primitives[] = {
 	new Primitive("photo", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		try {
 		    String name = cxt.string(args[base + 0]);
 		    if (name.indexOf(':') < 0)
 			name = "file:" + name;
-		    Image image = Image.fromUrl(new URL(name));
+		    Image image = ImageLoader.shared.load(name);
 		    if (image == null)
 			cxt.primFail("Error loading photo: " + name);
 		    return new ImagePicture(image);
@@ -174,17 +322,15 @@ public class ImagePicture extends Picture {
 	},
 	
 	new Primitive("resource", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		try {
 		    String name = cxt.string(args[base+0]);
-		    Image image = Image.fromResource(name);
+		    Image image = ImageLoader.shared.load("asset:" + name);
 		    if (image == null) cxt.primFail("Error loading resource: " + name);
 		    return new ImagePicture(image, name);
 		}
 		catch (IOException e) {
 		    cxt.primFail("Image I/O error - " + e);
-		} catch (CommandException e) {
-		    cxt.primFail("Image Command error - " + e);
 		}
 	    return Value.nil;
 	    }
@@ -195,16 +341,21 @@ public class ImagePicture extends Picture {
 	    public Result apply(Value[] args, int base, int nargs, 
 		    ErrContext cxt, Continuation k) {
 		if (nargs != arity) badArity(nargs, cxt);
-		this.cxt = cxt;
-		int width = (int) cxt.number(args[base+0]);
-		int height = (int) cxt.number(args[base+1]);
+		int width, height;
+		try {
+		    width = (int) cxt.number(args[base+0]);
+		    height = (int) cxt.number(args[base+1]);
+		}
+		catch (ErrContext.ExpectException e) {
+		    throw e.forFunction(name);
+		}
 		Value fun = args[base+2];
 		return new PixelLoop(width, height, fun, cxt, k);
 	    }
 	},
 	
 	new Primitive("pixel", 3) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		try {
 		    ImagePicture p = (ImagePicture) args[base+0];
 		    int w = p.image.getWidth(), h = p.image.getHeight();
@@ -212,7 +363,7 @@ public class ImagePicture extends Picture {
 		    int y = (int) Math.round(cxt.number(args[base+2]));
 		    if (0 <= x && x < w && 0 <= y && y < h) {
 			int rgb = p.image.getRGB(x, h-y-1);
-			return new ColorValue(rgb);
+			return ColorValue.fromRGB(rgb);
 		    }
 		    else {
 			return ColorValue.white;
@@ -226,7 +377,7 @@ public class ImagePicture extends Picture {
 	},
 	
 	new Primitive("width", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		try {
 		    ImagePicture p = (ImagePicture) args[base+0];
 		    return Value.makeNumValue(p.image.getWidth());
@@ -239,7 +390,7 @@ public class ImagePicture extends Picture {
 	},
 	
 	new Primitive("height", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		try {
 		    ImagePicture p = (ImagePicture) args[base+0];
 		    return Value.makeNumValue(p.image.getHeight());
@@ -249,7 +400,24 @@ public class ImagePicture extends Picture {
 		    return null;
 		}
 	    }
+	},
+	
+	/** Start loading a photo in the background */
+	new Primitive("prefetch", 1) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		String name = cxt.string(args[base + 0]);
+		if (name.indexOf(':') < 0)
+		    name = "file:" + name;
+		ImageLoader.shared.prefetch(name);
+		return Value.nil;
+	    }
+	},
+	
+	/** Describe the contents of the image cache */
+	new Primitive("photostats", 0) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		return Value.makeStringValue(ImageLoader.shared.toString());
+	    }
 	}
-
     };
 }
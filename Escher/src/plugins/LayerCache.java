@@ -0,0 +1,114 @@
+package plugins;
+
+/** A renderer for drawing the same picture repeatedly with different
+ *  values of the slider, as when the slider is being dragged.
+ *
+ *  The parts of the picture that do not depend on the slider are
+ *  drawn once into two cached layers: one with the background and
+ *  fills, and a transparent one with strokes.  For each frame, the
+ *  fill layer is copied, the interactive parts are filled on top,
+ *  the stroke layer is blended in, and the interactive parts are
+ *  stroked.
+ *
+ *  That gives the same picture as drawing everything afresh unless a
+ *  static part overlaps an interactive part that is drawn before it,
+ *  as in super(colour(p), q).  The picture is checked for this when
+ *  the layers are first needed, and if it happens, each frame is
+ *  drawn in full instead. */
+public class LayerCache {
+    private final Picture pic;
+    private final int width, height, background;
+    private final Tran2D trans;
+
+    /** Whether the picture can be drawn in layers, or null if it has
+     * not been checked */
+    private Boolean layered = null;
+
+    /** The cached layers, or null if not yet drawn */
+    private int fills[] = null, strokes[] = null;
+
+    /** The frame most recently drawn, and its slider value */
+    private int frame[] = null;
+    private float lastSlider = Float.NaN;
+
+    public LayerCache(Picture pic, int width, int height, int background) {
+	this.pic = pic;
+	this.width = width; this.height = height;
+	this.background = background;
+	// The same transform as Picture.draw(tablet, ww, hh, bg)
+	trans = Tran2D.translation(0, height).scale(width, -height);
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+
+    /** Render the picture with a given slider value.  The result is
+     * an array of width * height ARGB pixels that belongs to the
+     * cache and is overwritten by the next call. */
+    public int[] render(float slider) {
+	if (frame != null
+		&& (slider == lastSlider || ! pic.isInteractive()))
+	    return frame;
+
+	if (frame == null) frame = new int[width * height];
+
+	if (! isLayered()) {
+	    SoftTablet g = new SoftTablet(frame, width, 0, 0,
+		    width, height, slider);
+	    pic.draw(g, trans, background);
+	    g.close();
+	    lastSlider = slider;
+	    return frame;
+	}
+
+	if (fills == null) drawLayers(slider);
+
+	System.arraycopy(fills, 0, frame, 0, fills.length);
+	SoftTablet g = new SoftTablet(frame, width, 0, 0,
+		width, height, slider);
+	g.setFilter(Tablet.INTERACTIVE);
+	pic.paintPart(Picture.FILL, -1, g, trans);
+	g.drawPixels(strokes, 0, 0, width, height);
+	pic.paintPart(Picture.DRAW, -1, g, trans);
+	g.close();
+
+	lastSlider = slider;
+	return frame;
+    }
+
+    /** Draw the static layers.  The slider value does not matter,
+     * but the tablets need one. */
+    private void drawLayers(float slider) {
+	fills = new int[width * height];
+	SoftTablet g = new SoftTablet(fills, width, 0, 0,
+		width, height, slider);
+	g.setFilter(Tablet.STATIC);
+	g.fillOutline(Picture.unitsquare, background, trans);
+	pic.paintPart(Picture.FILL, -1, g, trans);
+	g.close();
+
+	strokes = new int[width * height];
+	g = new SoftTablet(strokes, width, 0, 0, width, height, slider);
+	g.setFilter(Tablet.STATIC);
+	pic.paintPart(Picture.DRAW, -1, g, trans);
+	g.close();
+    }
+
+    /** Test whether frames are drawn from cached layers, rather than
+     * in full */
+    public boolean isLayered() {
+	if (layered == null) {
+	    Picture.LayerCheck check = new Picture.LayerCheck();
+	    pic.checkLayers(trans, check);
+	    layered = ! check.isClash();
+	}
+	return layered;
+    }
+
+    /** Discard the cached layers, so that they will be drawn again */
+    public void invalidate() {
+	fills = strokes = null;
+	layered = null;
+	lastSlider = Float.NaN;
+    }
+}
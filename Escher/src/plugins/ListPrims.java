@@ -0,0 +1,351 @@
+package plugins;
+
+import funbase.ErrContext;
+import funbase.Evaluator;
+import funbase.Evaluator.Continuation;
+import funbase.Evaluator.EvalException;
+import funbase.Evaluator.Result;
+import funbase.Primitive;
+import funbase.Value;
+
+/** Native versions of the list functions from the library.
+ *
+ *  Each primitive has the same name as the library function it
+ *  replaces, and gives the same results and the same errors; when the
+ *  plugin is installed, Session puts them in place of the frozen
+ *  closures, saving a machine activation and a pattern match for each
+ *  element.  Those that apply a function argument (map, filter, foldl
+ *  and foldr) do not call it recursively: each call is given a Step
+ *  continuation, which returns to the evaluator loop before taking the
+ *  next step, so the Java stack does not grow with the list, and the
+ *  time limit and first-class continuations still work. */
+public class ListPrims {
+
+    /** Accumulated results, most recent first.  These are not list
+     * values, so they do not count against the space limit; the
+     * result list is made from them at the end. */
+    private static class Link {
+	final Value head;
+	final Link next;
+
+	Link(Value head, Link next) {
+	    this.head = head;
+	    this.next = next;
+	}
+    }
+
+    /** Make a list from accumulated results, in the order they were
+     * added */
+    private static Value makeList(Link acc) {
+	Value val = Value.nil;
+	for (Link p = acc; p != null; p = p.next)
+	    val = Value.cons(p.head, val);
+	return val;
+    }
+
+    /** Report failure of pattern matching as the library closure would */
+    private static void noMatch(ErrContext cxt, Value... args) {
+	StringBuilder buf = new StringBuilder();
+	for (int i = 0; i < args.length; i++) {
+	    if (i > 0) buf.append(", ");
+	    buf.append(args[i]);
+	}
+
+	throw new EvalException("no pattern matches "
+		+ (args.length == 1 ? "argument" : "arguments")
+		+ " (" + buf + ")", cxt, "#match");
+    }
+
+    /** The continuation for one call of a function argument.  Steps
+     * are never changed once made, so a continuation captured by the
+     * function can be resumed any number of times. */
+    private static abstract class Step extends Continuation {
+	protected final Continuation k;
+
+	Step(Continuation k) {
+	    this.k = k;
+	}
+
+	/** Carry on after the call has returned v */
+	protected abstract Result next(Value v);
+
+	@Override
+	public Result result(final Value v) {
+	    return new Result() {
+		public Result resume(Evaluator ev) {
+		    return next(v);
+		}
+	    };
+	}
+
+	@Override
+	public Continuation copy() {
+	    k.copy();
+	    return this;
+	}
+
+	@Override
+	public long stackSize() {
+	    return k.stackSize();
+	}
+    }
+
+    /** A primitive that applies a function argument */
+    private static abstract class Iteration extends Primitive {
+	Iteration(String name, int arity) {
+	    super(name, arity);
+	}
+
+	/** Start the iteration, reporting errors as in function cxt */
+	protected abstract Result start(Value args[], int base,
+					ErrContext cxt, Continuation k);
+
+	@Override
+	public Result apply(Value args[], int base, int nargs,
+			    ErrContext cxt, Continuation k) {
+	    if (nargs != arity) badArity(nargs, cxt);
+	    return start(args, base, cxt.freezeEnter(name), k);
+	}
+    }
+
+    private static Result map(final Value f, Value xs, final Link acc,
+			      final ErrContext cxt, Continuation k) {
+	if (xs.isNilValue())
+	    return k.result(makeList(acc));
+
+	try {
+	    final Value tail = xs.getTail();
+	    return f.apply(new Value[] { xs.getHead() }, 0, 1, cxt,
+			   new Step(k) {
+		protected Result next(Value v) {
+		    return map(f, tail, new Link(v, acc), cxt, k);
+		}
+	    });
+	}
+	catch (Value.WrongKindException e) {
+	    noMatch(cxt, f, xs);
+	    return null;
+	}
+    }
+
+    private static Result filter(final Value p, Value xs, final Link acc,
+				 final ErrContext cxt, Continuation k) {
+	if (xs.isNilValue())
+	    return k.result(makeList(acc));
+
+	try {
+	    final Value x = xs.getHead(), tail = xs.getTail();
+	    return p.apply(new Value[] { x }, 0, 1, cxt,
+			   new Step(k) {
+		protected Result next(Value v) {
+		    boolean keep;
+		    try {
+			keep = v.asBoolean();
+		    }
+		    catch (Value.WrongKindException e) {
+			throw new EvalException(
+				"boolean expected in conditional expression",
+				cxt, "#condexp");
+		    }
+		    return filter(p, tail, (keep ? new Link(x, acc) : acc),
+				  cxt, k);
+		}
+	    });
+	}
+	catch (Value.WrongKindException e) {
+	    noMatch(cxt, p, xs);
+	    return null;
+	}
+    }
+
+    private static Result foldl(final Value f, Value a, Value xs,
+				final ErrContext cxt, Continuation k) {
+	if (xs.isNilValue())
+	    return k.result(a);
+
+	try {
+	    final Value tail = xs.getTail();
+	    return f.apply(new Value[] { a, xs.getHead() }, 0, 2, cxt,
+			   new Step(k) {
+		protected Result next(Value v) {
+		    return foldl(f, v, tail, cxt, k);
+		}
+	    });
+	}
+	catch (Value.WrongKindException e) {
+	    noMatch(cxt, f, a, xs);
+	    return null;
+	}
+    }
+
+    /** Apply f to elems[i] and the result of folding elems[i+1..] */
+    private static Result foldr(final Value f, final Value elems[],
+				final int i, Value a,
+				final ErrContext cxt, Continuation k) {
+	if (i < 0)
+	    return k.result(a);
+
+	return f.apply(new Value[] { elems[i], a }, 0, 2, cxt,
+		       new Step(k) {
+	    protected Result next(Value v) {
+		return foldr(f, elems, i-1, v, cxt, k);
+	    }
+	});
+    }
+
+    /** Primitives that replace the library definitions */
+    public static final Primitive library[] = {
+	new Primitive("length", 1) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Value xs = args[base+0];
+		int n = 0;
+		while (xs.isConsValue()) {
+		    n++;
+		    xs = cxt.tail(xs);
+		}
+		if (! xs.isNilValue())
+		    cxt.primFail("bad argument to function 'length'",
+				 "#length");
+		return Value.makeNumValue(n);
+	    }
+	},
+
+	new Primitive("reverse", 1) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Value xs = args[base+0], val = Value.nil;
+		while (xs.isConsValue()) {
+		    val = Value.cons(cxt.head(xs), val);
+		    xs = cxt.tail(xs);
+		}
+		// The library reports this from its local function reva
+		if (! xs.isNilValue())
+		    new ErrContext("reva").primFail(
+			    "bad argument to function 'reverse'", "#reverse");
+		return val;
+	    }
+	},
+
+	new Primitive("@", 2) {
+	    /* Append two lists, copying the first */
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Value xs = args[base+0], ys = args[base+1];
+		int n = 0;
+		for (Value p = xs; ! p.isNilValue(); p = cxt.tail(p)) {
+		    if (! p.isConsValue())
+			cxt.primFail("bad arguments to operator '@'",
+				     "#concat");
+		    n++;
+		}
+		if (n == 0) return ys;
+
+		if (! ys.isConsValue() && ! ys.isNilValue())
+		    cxt.freezeEnter(name).expect("list");
+		Value elems[] = new Value[n];
+		for (int i = 0; i < n; i++) {
+		    elems[i] = cxt.head(xs);
+		    xs = cxt.tail(xs);
+		}
+		Value val = ys;
+		for (int i = n-1; i >= 0; i--)
+		    val = Value.cons(elems[i], val);
+		return val;
+	    }
+	},
+
+	new Primitive("member", 2) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Value x = args[base+0], xs = args[base+1];
+		while (xs.isConsValue()) {
+		    if (x.equals(cxt.head(xs))) return Value.makeBoolValue(true);
+		    xs = cxt.tail(xs);
+		}
+		if (! xs.isNilValue()) noMatch(cxt.freezeEnter(name), x, xs);
+		return Value.makeBoolValue(false);
+	    }
+	},
+
+	new Primitive("assoc", 2) {
+	    /* Look up a key in a list of [key, value] pairs */
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Value x = args[base+0], al = args[base+1];
+		try {
+		    while (al.isConsValue()) {
+			Value pair = al.getHead();
+			Value rest = pair.getTail();
+			if (! rest.getTail().isNilValue())
+			    break;
+			if (x.equals(pair.getHead())) return rest.getHead();
+			al = al.getTail();
+		    }
+		}
+		catch (Value.WrongKindException e) {
+		    // Fall through to report the failure
+		}
+		if (! al.isNilValue()) noMatch(cxt.freezeEnter(name), x, al);
+		return Value.nil;
+	    }
+	},
+
+	new Primitive("index", 2) {
+	    /* Position of a value in a list, or -1 */
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Value x = args[base+0], xs = args[base+1];
+		int i = 0;
+		while (xs.isConsValue()) {
+		    if (x.equals(cxt.head(xs))) return Value.makeNumValue(i);
+		    xs = cxt.tail(xs);
+		    i++;
+		}
+		/* The library version does the work in a local function h,
+		   and the error is reported there */
+		if (! xs.isNilValue())
+		    noMatch(new ErrContext("h"), Value.makeNumValue(i), xs);
+		return Value.makeNumValue(-1);
+	    }
+	},
+
+	new Iteration("map", 2) {
+	    protected Result start(Value args[], int base,
+				   ErrContext cxt, Continuation k) {
+		return map(args[base+0], args[base+1], null, cxt, k);
+	    }
+	},
+
+	new Iteration("filter", 2) {
+	    protected Result start(Value args[], int base,
+				   ErrContext cxt, Continuation k) {
+		return filter(args[base+0], args[base+1], null, cxt, k);
+	    }
+	},
+
+	new Iteration("foldl", 3) {
+	    protected Result start(Value args[], int base,
+				   ErrContext cxt, Continuation k) {
+		return foldl(args[base+0], args[base+1], args[base+2],
+			     cxt, k);
+	    }
+	},
+
+	new Iteration("foldr", 3) {
+	    /* The list is checked before f is first called, as in the
+	       library version, which recurses to the end of the list and
+	       then applies f on the way back. */
+	    protected Result start(Value args[], int base,
+				   ErrContext cxt, Continuation k) {
+		Value f = args[base+0], a = args[base+1], xs = args[base+2];
+		int n = 0;
+		for (Value p = xs; ! p.isNilValue(); n++) {
+		    if (! p.isConsValue()) noMatch(cxt, f, a, p);
+		    p = cxt.tail(p);
+		}
+
+		Value elems[] = new Value[n];
+		for (int i = 0; i < n; i++) {
+		    elems[i] = cxt.head(xs);
+		    xs = cxt.tail(xs);
+		}
+		return foldr(f, elems, n-1, a, cxt, k);
+	    }
+	}
+    };
+}
@@ -0,0 +1,149 @@
+package plugins;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import funbase.ErrContext;
+import funbase.Evaluator.Continuation;
+import funbase.Evaluator.Result;
+import funbase.Function;
+import funbase.Primitive;
+import funbase.Value;
+
+/** A function that remembers its results.
+ *
+ *  memo(f) behaves like f, but keeps the results of recent calls in a
+ *  table keyed by the arguments, compared with Value.equals; a call
+ *  with the same arguments as an earlier one returns the same value
+ *  without calling f again.  This makes recursive picture builders
+ *  that reach the same sub-picture along many paths take linear time
+ *  instead of exponential.  f should have no side effects.  The table
+ *  is limited in size, and discards the least recently used result
+ *  when it is full. */
+public class Memo extends Function {
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of results to keep */
+    public static final int CAPACITY = 1000;
+
+    private final Value fun;
+    private final int capacity;
+
+    /** Results of recent calls, in order of use.  The table is not
+     * saved with a session. */
+    private transient Map<Key, Value> table;
+
+    private transient long hits, misses;
+
+    public Memo(Function fun, int capacity) {
+	super(fun.getName(), fun.getArity());
+	this.fun = fun;
+	this.capacity = capacity;
+    }
+
+    /** The arguments of a call, as a key in the table */
+    private static class Key {
+	private final Value args[];
+	private final int hash;
+
+	Key(Value args[]) {
+	    this.args = args;
+	    this.hash = Arrays.hashCode(args);
+	}
+
+	@Override
+	public boolean equals(Object a) {
+	    return (a instanceof Key && Arrays.equals(args, ((Key) a).args));
+	}
+
+	@Override
+	public int hashCode() { return hash; }
+    }
+
+    private synchronized Value lookup(Key key) {
+	if (table == null) {
+	    table = new LinkedHashMap<Key, Value>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Value> e) {
+		    return size() > capacity;
+		}
+	    };
+	}
+
+	Value v = table.get(key);
+	if (v != null) hits++; else misses++;
+	return v;
+    }
+
+    private synchronized void store(Key key, Value v) {
+	table.put(key, v);
+    }
+
+    @Override
+    public Result apply(Value args[], int base, int nargs,
+		       ErrContext cxt, final Continuation k) {
+	final Key key = new Key(Arrays.copyOfRange(args, base, base+nargs));
+	Value v = lookup(key);
+	if (v != null) return k.result(v);
+
+	/* Call the function with a continuation that saves the result.
+	   The continuation is never changed, so it may be captured and
+	   resumed any number of times. */
+	return fun.apply(key.args, 0, nargs, cxt, new Continuation() {
+	    public Result result(Value v) {
+		store(key, v);
+		return k.result(v);
+	    }
+
+	    public Continuation copy() {
+		k.copy();
+		return this;
+	    }
+
+	    public long stackSize() {
+		return k.stackSize();
+	    }
+	});
+    }
+
+    /** Discard the remembered results */
+    public synchronized void clear() {
+	if (table != null) table.clear();
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+
+    @Override
+    public void printOn(PrintWriter out) {
+	out.print("<function>");
+    }
+
+    /** Describe the use of the table */
+    public synchronized String getStats() {
+	return String.format("%d results; %d hits, %d misses",
+		(table == null ? 0 : table.size()), hits, misses);
+    }
+
+    public static final Primitive primitives[] = {
+	new Primitive("memo", 1) {
+	    /* Make a function that remembers its results */
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Value f = args[base+0];
+		if (! (f instanceof Function)) cxt.expect("function");
+		return new Memo((Function) f, CAPACITY);
+	    }
+	},
+
+	new Primitive("memostats", 1) {
+	    /* Describe the use of a function's table of results */
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Value f = args[base+0];
+		if (! (f instanceof Memo)) cxt.expect("memo function");
+		return Value.makeStringValue(((Memo) f).getStats());
+	    }
+	}
+    };
+}
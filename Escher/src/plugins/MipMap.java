@@ -0,0 +1,154 @@
+package plugins;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A pyramid of copies of an image, each half the size of the one
+ *  before, for drawing the image small without resampling the whole
+ *  thing.  When a photo is used as a tile in a deep recursive picture,
+ *  most copies are a few pixels across, and SoftTablet draws them from
+ *  a level that has about one image pixel per device pixel.
+ *
+ *  Level 0 is the image itself, fetched once into an array; the other
+ *  levels are made lazily by averaging 2 x 2 blocks of the level
+ *  before.  Pyramids are kept in a cache that is limited by total
+ *  size, and a pyramid is rebuilt if its image has been changed since
+ *  it was made. */
+public class MipMap {
+    private final Raster image;
+    private final int modCount;
+
+    /** Pixels of each level, or null if not yet made */
+    private final int levels[][];
+    private final int widths[], heights[];
+
+    private MipMap(Raster image) {
+	this.image = image;
+	this.modCount = image.getModCount();
+
+	int w = image.getWidth(), h = image.getHeight();
+	int n = 1;
+	while (w > 1 || h > 1) {
+	    w = (w+1)/2; h = (h+1)/2; n++;
+	}
+
+	levels = new int[n][];
+	widths = new int[n]; heights = new int[n];
+	w = image.getWidth(); h = image.getHeight();
+	for (int k = 0; k < n; k++) {
+	    widths[k] = w; heights[k] = h;
+	    w = (w+1)/2; h = (h+1)/2;
+	}
+    }
+
+    public int getLevels() { return levels.length; }
+    public int getWidth(int k) { return widths[k]; }
+    public int getHeight(int k) { return heights[k]; }
+
+    /** Choose a level for drawing with a given number of image pixels
+     * per device pixel: the smallest level that still has at least one
+     * pixel per device pixel */
+    public int levelFor(float scale) {
+	int k = 0;
+	while (scale >= 2.0f && k+1 < levels.length) {
+	    scale /= 2.0f; k++;
+	}
+	return k;
+    }
+
+    /** The pixels of level k, row by row from the top */
+    public synchronized int[] getPixels(int k) {
+	if (levels[k] == null) {
+	    if (k == 0)
+		levels[0] = image.getPixels();
+	    else
+		levels[k] = shrink(getPixels(k-1), widths[k-1], heights[k-1],
+			widths[k], heights[k]);
+	}
+	return levels[k];
+    }
+
+    /** Halve an image by averaging each 2 x 2 block.  At an odd edge,
+     * the last row or column is counted twice. */
+    private static int[] shrink(int src[], int sw, int sh, int w, int h) {
+	int dst[] = new int[w * h];
+	for (int y = 0; y < h; y++) {
+	    int r0 = 2*y*sw, r1 = Math.min(2*y+1, sh-1)*sw;
+	    for (int x = 0; x < w; x++) {
+		int c0 = 2*x, c1 = Math.min(2*x+1, sw-1);
+		int p = src[r0+c0], q = src[r0+c1];
+		int r = src[r1+c0], s = src[r1+c1];
+		if (p == q && p == r && p == s) {
+		    dst[y*w+x] = p;
+		    continue;
+		}
+		// Sum the channels in pairs, keeping two guard bits each
+		int rb = (p & 0xff00ff) + (q & 0xff00ff)
+		    + (r & 0xff00ff) + (s & 0xff00ff) + 0x020002;
+		int ag = ((p >>> 8) & 0xff00ff) + ((q >>> 8) & 0xff00ff)
+		    + ((r >>> 8) & 0xff00ff) + ((s >>> 8) & 0xff00ff)
+		    + 0x020002;
+		dst[y*w+x] = ((ag << 6) & 0xff00ff00) | ((rb >>> 2) & 0xff00ff);
+	    }
+	}
+	return dst;
+    }
+
+    /** Approximate memory used by the whole pyramid, in bytes */
+    private int footprint() {
+	// Each level is a quarter the size of the one before
+	return (int) Math.min(Integer.MAX_VALUE,
+		16L * widths[0] * heights[0] / 3 + 64);
+    }
+
+    // The cache
+
+    /** Limit on the total footprint of cached pyramids */
+    private static final long BUDGET = 32 << 20;
+
+    private static long size = 0;
+    private static long hits = 0, misses = 0;
+
+    /** The pyramids, in order of use.  Rasters are compared by
+     * identity, as Image does not override equals. */
+    private static final LinkedHashMap<Raster, MipMap> cache =
+	new LinkedHashMap<Raster, MipMap>(16, 0.75f, true);
+
+    /** Find or make the pyramid for an image */
+    public static synchronized MipMap get(Raster image) {
+	MipMap m = cache.get(image);
+	if (m != null && m.modCount == image.getModCount()) {
+	    hits++;
+	    return m;
+	}
+
+	misses++;
+	if (m != null) size -= m.footprint();
+	m = new MipMap(image);
+	if (m.footprint() > BUDGET) return m;
+	cache.put(image, m);
+	size += m.footprint();
+
+	Iterator<Map.Entry<Raster, MipMap>> iter =
+	    cache.entrySet().iterator();
+	while (size > BUDGET && iter.hasNext()) {
+	    MipMap victim = iter.next().getValue();
+	    if (victim == m) continue;
+	    iter.remove();
+	    size -= victim.footprint();
+	}
+	return m;
+    }
+
+    /** Discard all cached pyramids */
+    public static synchronized void clear() {
+	cache.clear();
+	size = 0;
+    }
+
+    public static synchronized String stats() {
+	return String.format("%d images, %d bytes; %d hits, %d misses",
+		cache.size(), size, hits, misses);
+    }
+}
@@ -0,0 +1,399 @@
+package plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import funbase.ErrContext;
+import funbase.Primitive;
+import funbase.Value;
+
+/** Picture context that outputs a one-page PDF file.
+ *
+ *  The page contents are streamed straight to the file.  Each tile is
+ *  made into a form XObject for each layer and colour offset that it
+ *  is drawn with, and each instance draws the form with a transform;
+ *  images become image XObjects in the same way.  These objects are
+ *  prepared in memory as they are needed, then written after the page
+ *  contents, followed by the page's resource dictionary and the
+ *  cross-reference table.
+ *
+ *  In PDF, unlike PostScript, a path cannot be built with one
+ *  transform and stroked with another.  So the stroke width for a form
+ *  is divided by the scale of the instance, which is right when the
+ *  transform is a similarity.  Tiles that are stretched unequally
+ *  in different directions have their strokes written out in full. */
+public class PDFWrite extends VectorWriter {
+    private final float width, height;
+
+    /** Object numbers: the page contents come first so that they can
+     * be streamed, and XObjects are numbered from FIRSTX. */
+    private static final int CATALOG = 1, PAGES = 2, PAGE = 3,
+	CONTENTS = 4, LENGTH = 5, RESOURCES = 6, FIRSTX = 7;
+
+    /** File offset of each object */
+    private final List<Long> offsets = new ArrayList<Long>();
+
+    /** Names and contents of XObjects, in order of object number */
+    private final List<String> xnames = new ArrayList<String>();
+    private final List<byte[]> xobjects = new ArrayList<byte[]>();
+
+    /** Object numbers of XObjects, indexed by name */
+    private final Map<String, Integer> xindex =
+	new HashMap<String, Integer>();
+
+    /** File offset of the page contents stream */
+    private long contentStart;
+
+    public PDFWrite(float width, float height, float slider,
+	    OutputStream out) {
+	super(slider, out);
+	this.width = width; this.height = height;
+
+	put("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n");
+	beginObject(CONTENTS);
+	put("<< /Length ").put(LENGTH).put(" 0 R >>\nstream\n");
+	contentStart = position();
+	put("1 J 1 j ").put(lineWidth).put(" w\n");
+    }
+
+    private void beginObject(int n) {
+	while (offsets.size() <= n) offsets.add(0L);
+	offsets.set(n, position());
+	put(n).put(" 0 obj\n");
+    }
+
+    private void endObject() {
+	put("endobj\n");
+    }
+
+    public void close() {
+	long length = position() - contentStart;
+	put("endstream\n");
+	endObject();
+
+	beginObject(LENGTH);
+	put(length).put('\n');
+	endObject();
+
+	for (int i = 0; i < xobjects.size(); i++) {
+	    byte body[] = xobjects.get(i);
+	    beginObject(FIRSTX + i);
+	    put(body, 0, body.length);
+	    endObject();
+	}
+
+	beginObject(RESOURCES);
+	put("<< /XObject <<");
+	for (int i = 0; i < xnames.size(); i++)
+	    put(" /").put(xnames.get(i)).put(' ').put(FIRSTX + i).put(" 0 R");
+	put(" >> >>\n");
+	endObject();
+
+	beginObject(CATALOG);
+	put("<< /Type /Catalog /Pages ").put(PAGES).put(" 0 R >>\n");
+	endObject();
+
+	beginObject(PAGES);
+	put("<< /Type /Pages /Kids [").put(PAGE).put(" 0 R] /Count 1 >>\n");
+	endObject();
+
+	beginObject(PAGE);
+	put("<< /Type /Page /Parent ").put(PAGES).put(" 0 R");
+	put(" /MediaBox [0 0 ").put(width).put(' ').put(height).put(']');
+	put(" /Resources ").put(RESOURCES).put(" 0 R");
+	put(" /Contents ").put(CONTENTS).put(" 0 R >>\n");
+	endObject();
+
+	long xref = position();
+	put("xref\n0 ").put(offsets.size()).put('\n');
+	put("0000000000 65535 f \n");
+	for (int i = 1; i < offsets.size(); i++)
+	    putPadded(offsets.get(i), 10).put(" 00000 n \n");
+	put("trailer\n<< /Size ").put(offsets.size());
+	put(" /Root ").put(CATALOG).put(" 0 R >>\n");
+	put("startxref\n").put(xref).put("\n%%EOF\n");
+	finish();
+    }
+
+    // Page contents
+
+    private void writeFill(int color) {
+	put(RGB.red(color)/255.0f).put(' ').put(RGB.green(color)/255.0f)
+	    .put(' ').put(RGB.blue(color)/255.0f).put(" rg\n");
+    }
+
+    private void writeStroke(int color) {
+	put(RGB.red(color)/255.0f).put(' ').put(RGB.green(color)/255.0f)
+	    .put(' ').put(RGB.blue(color)/255.0f).put(" RG\n");
+    }
+
+    private void writeTransform(Tran2D t) {
+	put(t.xx(), 4).put(' ').put(t.yx(), 4).put(' ')
+	    .put(t.xy(), 4).put(' ').put(t.yy(), 4).put(' ')
+	    .put(t.x(), 4).put(' ').put(t.y(), 4).put(" cm\n");
+    }
+
+    /** Write points a up to b of a packed array as a subpath */
+    private void writeSubpath(float xy[], int a, int b, int places) {
+	putPoints(xy, a, b, places, "m", "l");
+    }
+
+    public void drawStroke(Vec2D stroke[], Tran2D t) {
+	writeStroke(RGB.BLACK);
+	writeSubpath(transformPoints(stroke, t), 0, stroke.length, 3);
+	put("S\n");
+    }
+
+    public void fillOutline(Vec2D outline[], int color, Tran2D t) {
+	writeFill(color);
+	writeSubpath(transformPoints(outline, t), 0, outline.length, 3);
+	put("f\n");
+    }
+
+    /** Fill a batch of polygons, setting the colour only when it
+     * changes */
+    public void fillOutlines(float coords[], int offsets[],
+	    int specs[], int col, Tran2D t) {
+	int n = offsets[offsets.length-1];
+	float xy[] = transformPoints(coords, n, t);
+	int prev = RGB.TRANSPARENT;
+	for (int i = 0; i+1 < offsets.length; i++) {
+	    int color = fillColor(specs[i], col);
+	    if (color == RGB.TRANSPARENT) continue;
+	    if (color != prev) writeFill(color);
+	    prev = color;
+	    writeSubpath(xy, offsets[i], offsets[i+1], 3);
+	    put("f\n");
+	}
+    }
+
+    /** Draw a batch of strokes as a single path */
+    public void drawStrokes(float coords[], int offsets[], Tran2D t) {
+	if (offsets.length <= 1) return;
+	int n = offsets[offsets.length-1];
+	float xy[] = transformPoints(coords, n, t);
+	writeStroke(RGB.BLACK);
+	for (int i = 0; i+1 < offsets.length; i++)
+	    writeSubpath(xy, offsets[i], offsets[i+1], 3);
+	put("S\n");
+    }
+
+    public void drawLine(Vec2D from, Vec2D to, int color, Tran2D t) {
+	Vec2D a = t.transform(from), b = t.transform(to);
+	writeStroke(color);
+	put(a.x).put(' ').put(a.y).put(" m ")
+	    .put(b.x).put(' ').put(b.y).put(" l S\n");
+    }
+
+    public void drawArc(Vec2D centre, float xrad, float yrad,
+	    float start, float extent, int color, Tran2D t) {
+	int n = arcPoints(centre, xrad, yrad, start, extent, t);
+	writeStroke(color);
+	writeSubpath(arcBuffer(), 0, n, 3);
+	put("S\n");
+    }
+
+    public void save() {
+	super.save();
+	put("q\n");
+    }
+
+    public void restore() {
+	super.restore();
+	put("Q\n");
+    }
+
+    public void setStroke(float width) {
+	super.setStroke(width);
+	put(lineWidth).put(" w\n");
+    }
+
+    // XObjects
+
+    /** Begin preparing an XObject */
+    private ByteArrayOutputStream beginXObject() {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	divert(buf);
+	return buf;
+    }
+
+    /** Finish an XObject whose dictionary has been written up to
+     * the length, and whose contents are given */
+    private void endXObject(String name, ByteArrayOutputStream buf,
+	    byte contents[]) {
+	put(" /Length ").put(contents.length).put(" >>\nstream\n");
+	put(contents, 0, contents.length);
+	put("\nendstream\n");
+	undivert();
+	xindex.put(name, FIRSTX + xnames.size());
+	xnames.add(name);
+	xobjects.add(buf.toByteArray());
+    }
+
+    /** Prepare the contents of a form, returning them as bytes */
+    private byte[] formContents(TilePicture tile, int layer, int col) {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	divert(buf);
+	if (layer == Picture.DRAW) {
+	    float xy[] = tile.strokeCoords;
+	    int offsets[] = tile.strokeOffsets;
+	    writeStroke(RGB.BLACK);
+	    for (int i = 0; i+1 < offsets.length; i++)
+		writeSubpath(xy, offsets[i], offsets[i+1], 4);
+	    put("S\n");
+	}
+	else {
+	    float xy[] = tile.outlineCoords;
+	    int offsets[] = tile.outlineOffsets;
+	    int prev = RGB.TRANSPARENT;
+	    for (int i = 0; i+1 < offsets.length; i++) {
+		int color = fillColor(tile.colours[i], col);
+		if (color == RGB.TRANSPARENT) continue;
+		if (color != prev) writeFill(color);
+		prev = color;
+		writeSubpath(xy, offsets[i], offsets[i+1], 4);
+		put("f\n");
+	    }
+	}
+	undivert();
+	return buf.toByteArray();
+    }
+
+    /** Find the scale factor of a similarity, or return 0 if t is
+     * not one */
+    private static float similarity(Tran2D t) {
+	float a = t.xx(), b = t.yx(), c = t.xy(), d = t.yy();
+	float s = (float) Math.sqrt(Math.abs(a*d - b*c));
+	float eps = 1.0e-3f * s;
+	if ((Math.abs(a - d) <= eps && Math.abs(b + c) <= eps)
+		|| (Math.abs(a + d) <= eps && Math.abs(b - c) <= eps))
+	    return s;
+	return 0;
+    }
+
+    /** Draw a tile as an instance of a form */
+    @Override
+    public void drawTile(TilePicture tile, int layer, int col, Tran2D t) {
+	float scale = 0;
+	if (layer == Picture.DRAW) {
+	    scale = similarity(t);
+	    if (scale == 0) {
+		tile.defaultDraw(layer, col, this, t);
+		return;
+	    }
+	}
+
+	int id = findTile(tile);
+	if (id < 0) id = addTile(tile);
+
+	String name;
+	if (layer == Picture.DRAW)
+	    name = "T" + id + "d";
+	else
+	    name = "T" + id + "f" + (col < 0 ? "n" : col % palette.length);
+
+	if (! xindex.containsKey(name)) {
+	    byte contents[] = formContents(tile, layer, col);
+
+	    /* The bounding box is made generous, because it clips
+	     * the form and strokes may spill outside the tile */
+	    float b[] = tile.getBounds();
+	    float m = Math.max(b[2] - b[0], b[3] - b[1]);
+	    ByteArrayOutputStream buf = beginXObject();
+	    put("<< /Type /XObject /Subtype /Form /BBox [")
+		.put(b[0] - m, 4).put(' ').put(b[1] - m, 4).put(' ')
+		.put(b[2] + m, 4).put(' ').put(b[3] + m, 4).put(']');
+	    endXObject(name, buf, contents);
+	}
+
+	put("q ");
+	writeTransform(t);
+	if (layer == Picture.DRAW)
+	    put(lineWidth / scale, 6).put(" w ");
+	put('/').put(name).put(" Do Q\n");
+    }
+
+    /** Names of images that have been written */
+    private final Map<Raster, String> images =
+	new IdentityHashMap<Raster, String>();
+
+    public void drawImage(Raster image, Tran2D t) {
+	String name = images.get(image);
+	if (name == null) {
+	    name = "I" + images.size();
+	    images.put(image, name);
+
+	    int w = image.getWidth(), h = image.getHeight();
+	    ByteArrayOutputStream data = new ByteArrayOutputStream();
+	    try {
+		DeflaterOutputStream z = new DeflaterOutputStream(data);
+		byte row[] = new byte[3*w];
+		for (int y = 0; y < h; y++) {
+		    for (int x = 0; x < w; x++) {
+			int p = image.getRGB(x, y);
+			row[3*x] = (byte) RGB.red(p);
+			row[3*x+1] = (byte) RGB.green(p);
+			row[3*x+2] = (byte) RGB.blue(p);
+		    }
+		    z.write(row);
+		}
+		z.close();
+	    }
+	    catch (IOException e) {
+		// Can't happen with a byte array
+		throw new Error(e);
+	    }
+
+	    ByteArrayOutputStream buf = beginXObject();
+	    put("<< /Type /XObject /Subtype /Image /Width ").put(w)
+		.put(" /Height ").put(h).put(" /ColorSpace /DeviceRGB")
+		.put(" /BitsPerComponent 8 /Filter /FlateDecode");
+	    endXObject(name, buf, data.toByteArray());
+	}
+
+	// Image space is the unit square with the first row at the top
+	put("q ");
+	writeTransform(t);
+	put('/').put(name).put(" Do Q\n");
+    }
+
+    public static final Primitive primitives[] =  {
+	/** Save a picture as PDF */
+	new Picture.PicturePrimitive("pdfwrite", 4) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Picture pic = picture(args[base+0], cxt);
+		String fname = cxt.string(args[base+1]);
+		float meanSize = (float) cxt.number(args[base+2]);
+		float greyLevel = (float) cxt.number(args[base+3]);
+		int background = RGB.fromRGB(greyLevel, greyLevel, greyLevel);
+
+		// Same dimensions as for epswrite
+		float sqrtAspect = (float) Math.sqrt(pic.getAspect());
+		float width = meanSize * sqrtAspect;
+		float height = meanSize / sqrtAspect;
+
+		try {
+		    OutputStream out = new FileOutputStream(fname);
+		    VectorWriter g = new PDFWrite(width, height, 0.5f, out);
+		    Tran2D t = Tran2D.identity.scale(width, height);
+		    pic.draw(g, t, background);
+		    g.close();
+		    if (g.getError() != null) throw g.getError();
+		}
+		catch (IOException e) {
+		    cxt.primFail("I/O failed: " + e.getMessage());
+		}
+
+		return Value.nil;
+	    }
+	}
+    };
+}
@@ -0,0 +1,131 @@
+package plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/** Write an array of ARGB pixels as a PNG file, without help from
+ *  Android or AWT.  The alpha channel is kept only if some pixel is
+ *  not opaque.  Each row is filtered with whichever of the standard
+ *  filters gives the smallest sum of absolute differences. */
+public class PNGEncoder {
+    private static final byte SIGNATURE[] = {
+	(byte) 137, 80, 78, 71, 13, 10, 26, 10
+    };
+
+    /** PNG filter types */
+    private static final int NONE = 0, SUB = 1, UP = 2,
+	AVERAGE = 3, PAETH = 4;
+
+    public static void write(int pixels[], int width, int height,
+	    OutputStream out) throws IOException {
+	boolean alpha = false;
+	for (int i = 0; i < width * height && ! alpha; i++)
+	    alpha = (RGB.alpha(pixels[i]) != 0xff);
+	int bpp = (alpha ? 4 : 3);
+
+	DataOutputStream data = new DataOutputStream(out);
+	data.write(SIGNATURE);
+
+	ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+	DataOutputStream h = new DataOutputStream(header);
+	h.writeInt(width);
+	h.writeInt(height);
+	h.writeByte(8);                 // bit depth
+	h.writeByte(alpha ? 6 : 2);     // colour type: RGBA or RGB
+	h.writeByte(0);                 // compression
+	h.writeByte(0);                 // filter method
+	h.writeByte(0);                 // no interlace
+	writeChunk(data, "IHDR", header.toByteArray());
+
+	ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+	Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	DeflaterOutputStream z =
+	    new DeflaterOutputStream(compressed, deflater, 1 << 16);
+
+	int n = width * bpp;
+	byte prev[] = new byte[n], curr[] = new byte[n],
+	    best[] = new byte[n], trial[] = new byte[n];
+
+	for (int y = 0; y < height; y++) {
+	    int base = y * width;
+	    for (int x = 0; x < width; x++) {
+		int p = pixels[base + x], k = x * bpp;
+		curr[k] = (byte) RGB.red(p);
+		curr[k+1] = (byte) RGB.green(p);
+		curr[k+2] = (byte) RGB.blue(p);
+		if (alpha) curr[k+3] = (byte) RGB.alpha(p);
+	    }
+
+	    int bestType = NONE;
+	    long bestCost = Long.MAX_VALUE;
+	    for (int type = NONE; type <= PAETH; type++) {
+		long cost = filter(type, curr, prev, trial, bpp);
+		if (cost < bestCost) {
+		    bestCost = cost; bestType = type;
+		    byte tmp[] = best; best = trial; trial = tmp;
+		}
+	    }
+
+	    z.write(bestType);
+	    z.write(best, 0, n);
+
+	    byte tmp[] = prev; prev = curr; curr = tmp;
+	}
+
+	z.finish();
+	deflater.end();
+	writeChunk(data, "IDAT", compressed.toByteArray());
+	writeChunk(data, "IEND", new byte[0]);
+	data.flush();
+    }
+
+    /** Apply a filter to a row, returning a measure of the result's
+     * compressibility */
+    private static long filter(int type, byte curr[], byte prev[],
+	    byte result[], int bpp) {
+	long cost = 0;
+	for (int i = 0; i < curr.length; i++) {
+	    int x = curr[i] & 0xff;
+	    int a = (i >= bpp ? curr[i-bpp] & 0xff : 0);
+	    int b = prev[i] & 0xff;
+	    int c = (i >= bpp ? prev[i-bpp] & 0xff : 0);
+	    int pred;
+	    switch (type) {
+		case SUB: pred = a; break;
+		case UP: pred = b; break;
+		case AVERAGE: pred = (a + b) >> 1; break;
+		case PAETH: pred = paeth(a, b, c); break;
+		default: pred = 0;
+	    }
+	    byte r = (byte) (x - pred);
+	    result[i] = r;
+	    cost += Math.abs((int) r);
+	}
+	return cost;
+    }
+
+    private static int paeth(int a, int b, int c) {
+	int p = a + b - c;
+	int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+	if (pa <= pb && pa <= pc) return a;
+	if (pb <= pc) return b;
+	return c;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type,
+	    byte data[]) throws IOException {
+	byte tag[] = type.getBytes("US-ASCII");
+	CRC32 crc = new CRC32();
+	crc.update(tag);
+	crc.update(data);
+	out.writeInt(data.length);
+	out.write(tag);
+	out.write(data);
+	out.writeInt((int) crc.getValue());
+    }
+}
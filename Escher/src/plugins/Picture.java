@@ -33,7 +33,9 @@ package plugins;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
+import funbase.ErrContext;
 import funbase.Evaluator;
 import funbase.Primitive;
 import funbase.Value;
@@ -74,8 +76,19 @@ public class Picture extends Value implements Drawable {
     
     public boolean isInteractive() { return interactive; }
     
+    /** Test whether the picture depends on the slider itself, rather
+     *  than through its parts.  Pictures made by combining others
+     *  override this to return false. */
+    protected boolean usesSlider() { return interactive; }
+    
     public void draw(Tablet tablet, int ww, int hh, int backgroundColor) {
 	Tran2D t = Tran2D.translation(0, hh).scale(ww, -hh);
+	draw(tablet, t, backgroundColor);
+    }
+    
+    /** Draw the picture with its background in the image of the 
+     *  unit square under t */
+    public void draw(Tablet tablet, Tran2D t, int backgroundColor) {
 	tablet.fillOutline(unitsquare, backgroundColor, t);
 	paintPart(FILL, -1, tablet, t);
 	paintPart(DRAW, -1, tablet, t);
@@ -88,6 +101,26 @@ public class Picture extends Value implements Drawable {
     };
     
     public final void paintPart(int layer, int col, Tablet g, Tran2D t) { 
+	/* If the tablet is drawing only the static or only the 
+	 * interactive parts, skip the others.  Once we reach a picture 
+	 * that uses the slider itself, all of it is interactive. */
+	int filter = g.getFilter();
+	if (filter != Tablet.ALL) {
+	    if (filter == Tablet.STATIC ? usesSlider() : ! isInteractive())
+		return;
+	    if (filter == Tablet.INTERACTIVE && usesSlider()) {
+		g.setFilter(Tablet.ALL);
+		paintPart(layer, col, g, t);
+		g.setFilter(filter);
+		return;
+	    }
+	}
+	
+	float box[] = getBounds();
+	
+	// Skip pictures that are outside the region being drawn
+	if (g.isClipped(t, box)) return;
+	
 	// Give up if the drawing space is negligibly small
 	if (g.isTiny(t)) {
 	    if (layer == DRAW)
@@ -95,9 +128,137 @@ public class Picture extends Value implements Drawable {
 	    return;
 	}
 	
+	/* Below the level of detail, fill with the average colour; but
+	 * not if only some of the picture is being drawn */
+	if (g.isCoarse(t, box) && (filter == Tablet.ALL || ! interactive)) {
+	    if (layer == FILL) {
+		int color = g.averageColor(this, col);
+		if (color != RGB.TRANSPARENT)
+		    g.fillOutline(getBoundsOutline(), color, t);
+	    }
+	    return;
+	}
+	
 	this.paint(layer, col, g, t);
     }
     
+    /** The state of a walk over a picture that checks whether its
+     *  static parts can be drawn before its interactive ones.  That
+     *  gives the same result as drawing in order unless a static part
+     *  overlaps an interactive part that comes before it, as in 
+     *  super(colour(p), q). */
+    public static class LayerCheck {
+	/** Margin in device units allowed for strokes and anti-aliasing */
+	private static final float MARGIN = 2.0f;
+	
+	/** Union of device-space boxes of the interactive parts seen 
+	 * so far, or null */
+	private float seen[] = null;
+	
+	private boolean clash = false;
+	
+	public boolean isClash() { return clash; }
+	
+	void addInteractive(float box[]) {
+	    seen = (seen == null ? box : union(seen, box));
+	}
+	
+	void addStatic(float box[]) {
+	    if (seen != null 
+		    && box[0] - MARGIN < seen[2] && seen[0] < box[2] + MARGIN
+		    && box[1] - MARGIN < seen[3] && seen[1] < box[3] + MARGIN)
+		clash = true;
+	}
+    }
+    
+    /** Walk the picture in drawing order under transform t */
+    public final void checkLayers(Tran2D t, LayerCheck check) {
+	if (check.clash) return;
+	if (! isInteractive())
+	    check.addStatic(t.transformBox(getBounds()));
+	else if (usesSlider())
+	    check.addInteractive(t.transformBox(getBounds()));
+	else
+	    checkParts(t, check);
+    }
+    
+    /** Walk the parts of a picture that depends on the slider only
+     *  through its parts.  Subclasses that override usesSlider must
+     *  override this too. */
+    protected void checkParts(Tran2D t, LayerCheck check) {
+	check.clash = true;
+    }
+    
+    /** Bounding box in unit space, cached by getBounds */
+    private transient float bounds[] = null;
+    private transient Vec2D boundsOutline[] = null;
+    
+    /** Get a box { xmin, ymin, xmax, ymax } in unit space that 
+     *  contains everything the picture draws, apart from the width 
+     *  of strokes. */
+    public final float[] getBounds() {
+	if (bounds == null) bounds = calcBounds();
+	return bounds;
+    }
+    
+    /** Get the bounding box as a polygon */
+    protected final Vec2D[] getBoundsOutline() {
+	if (boundsOutline == null) {
+	    float b[] = getBounds();
+	    boundsOutline = new Vec2D[] {
+		new Vec2D(b[0], b[1]), new Vec2D(b[0], b[3]),
+		new Vec2D(b[2], b[3]), new Vec2D(b[2], b[1])
+	    };
+	}
+	return boundsOutline;
+    }
+    
+    /** Compute the bounding box.  Subclasses that draw only in part
+     *  of the unit square can override this to give a tighter box. */
+    protected float[] calcBounds() {
+	return new float[] { 0, 0, 1, 1 };
+    }
+    
+    /** Compute the average colour of the fill layer, as an ARGB value
+     *  whose alpha channel is the fraction of the bounding box that
+     *  is covered.  This is called through Tablet.averageColor, 
+     *  which caches the result. */
+    protected int calcAverage(int col, Tablet g) {
+	return RGB.TRANSPARENT;
+    }
+    
+    /** An accumulator for finding the average of several colours */
+    protected static class ColorMix {
+	private float r = 0, g = 0, b = 0, a = 0;
+	
+	/** Add a colour that covers a certain proportion of the area */
+	public void add(int color, float weight) {
+	    float w = weight * RGB.alpha(color) / 255.0f;
+	    r += w * RGB.red(color); 
+	    g += w * RGB.green(color);
+	    b += w * RGB.blue(color);
+	    a += w;
+	}
+	
+	/** Add the average colour of a picture drawn in the image of 
+	 *  its bounding box under t */
+	public void add(Picture pic, int col, Tablet tablet, 
+		Tran2D t, float box[]) {
+	    float area = (box[2] - box[0]) * (box[3] - box[1]);
+	    float b[] = pic.getBounds();
+	    float w = (b[2] - b[0]) * (b[3] - b[1]) * t.areaScale();
+	    if (area > 0)
+		add(tablet.averageColor(pic, col), w/area);
+	}
+	
+	public int get() {
+	    if (a <= 0) return RGB.TRANSPARENT;
+	    int alpha = Math.round(255 * Math.min(a, 1.0f));
+	    return (alpha << 24) | (Math.round(r/a) << 16) 
+		| (Math.round(g/a) << 8) | Math.round(b/a);
+	}
+    }
+    
     /** Draw the picture on a specified Tablet.  Subclasses
      *  should override this method to implement their own
      *  drawing. Use drawPart() to draw sub-pictures so that they are
@@ -121,11 +282,36 @@ public class Picture extends Value implements Drawable {
     protected static float hbase = 0.3f, hstep = 0.1f, 
 	svalue = 0.5f, bvalue = 1.0f;
 
-    public static int[] makePalette(float slider) {
-	int palette[] = new int[4];
+    /** Palettes made recently, with the slider value and settings
+     *  they were made for: each tablet needs a palette, and dragging
+     *  the slider or drawing in tiles makes many tablets for the same
+     *  few slider values. */
+    private static final int NPALETTES = 16;
+    private static final float paletteKeys[][] = new float[NPALETTES][];
+    private static final int palettes[][] = new int[NPALETTES][];
+    private static int nextPalette = 0;
+
+    /** Find or make the palette for a slider value.  The result may
+     *  be shared, so it must not be changed. */
+    public static synchronized int[] makePalette(float slider) {
+	float key[] = { slider, hbase, hstep, svalue, bvalue };
+	for (int k = 0; k < NPALETTES; k++) {
+	    if (Arrays.equals(paletteKeys[k], key))
+		return palettes[k];
+	}
+
 	float base = hbase + 2.0f * slider - 1.0f;
-	for (int i = 0; i < 4; i++)
-	    palette[i] = RGB.fromHSB(base + i * hstep, svalue, bvalue);
+	float hsb[] = new float[12];
+	for (int i = 0; i < 4; i++) {
+	    hsb[3*i] = base + i * hstep;
+	    hsb[3*i+1] = svalue; hsb[3*i+2] = bvalue;
+	}
+	int palette[] = new int[4];
+	RGB.fromHSB(hsb, palette, 4);
+
+	paletteKeys[nextPalette] = key;
+	palettes[nextPalette] = palette;
+	nextPalette = (nextPalette+1) % NPALETTES;
 	return palette;
     }
 	    
@@ -137,16 +323,24 @@ public class Picture extends Value implements Drawable {
 	}
 	
 	/** Access an argument that should be a picture */
-	protected Picture picture(Value a) {
+	protected static Picture picture(Value a, ErrContext cxt) {
 	    return cxt.cast(Picture.class, a, "picture");
 	}
 	
 	/** Access an argument that should be a color */
-	protected ColorValue color(Value a) {
+	protected static ColorValue color(Value a, ErrContext cxt) {
 	    return cxt.cast(ColorValue.class, a, "colour");
 	}
     }
     
+    /** Compute the smallest box containing two others */
+    protected static float[] union(float a[], float b[]) {
+	return new float[] {
+		Math.min(a[0], b[0]), Math.min(a[1], b[1]),
+		Math.max(a[2], b[2]), Math.max(a[3], b[3])
+	};
+    }
+    
     private static class BesidePicture extends Picture {
 	private static final long serialVersionUID = 1L;
 
@@ -164,6 +358,30 @@ public class Picture extends Value implements Drawable {
 	    left.paintPart(layer, col, g, t.concat(ltrans));
 	    right.paintPart(layer, col, g, t.concat(rtrans));
 	}
+
+	@Override
+	protected boolean usesSlider() { return false; }
+
+	@Override
+	protected void checkParts(Tran2D t, LayerCheck check) {
+	    left.checkLayers(t.concat(ltrans), check);
+	    right.checkLayers(t.concat(rtrans), check);
+	}
+
+	@Override
+	protected float[] calcBounds() {
+	    return union(ltrans.transformBox(left.getBounds()),
+		    rtrans.transformBox(right.getBounds()));
+	}
+	
+	@Override
+	protected int calcAverage(int col, Tablet g) {
+	    float box[] = getBounds();
+	    ColorMix mix = new ColorMix();
+	    mix.add(left, col, g, ltrans, box);
+	    mix.add(right, col, g, rtrans, box);
+	    return mix.get();
+	}
     }
 
     private static class TransPicture extends Picture {
@@ -178,21 +396,46 @@ public class Picture extends Value implements Drawable {
 	}
 
 	public void paint(int layer, int col, Tablet g, Tran2D t) {
-	    base.paintPart(layer, col, g, t.concat(trans));
+	    base.paintPart(layer, baseColor(col), g, t.concat(trans));
+	}
+
+	@Override
+	protected boolean usesSlider() { return false; }
+
+	@Override
+	protected void checkParts(Tran2D t, LayerCheck check) {
+	    base.checkLayers(t.concat(trans), check);
+	}
+	
+	/** Colour offset used for the base picture */
+	protected int baseColor(int col) {
+	    return col;
+	}
+	
+	@Override
+	protected float[] calcBounds() {
+	    return trans.transformBox(base.getBounds());
+	}
+	
+	@Override
+	protected int calcAverage(int col, Tablet g) {
+	    ColorMix mix = new ColorMix();
+	    mix.add(base, baseColor(col), g, trans, getBounds());
+	    return mix.get();
 	}
     }
 
     public static final Primitive primitives[] = {
 	new Primitive("null", 0) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		return new Picture(0.0f);
 	    }
 	},
 	
 	new PicturePrimitive("$", 2) {
-	    public Value invoke(Value args[], int base) {
-		Picture left = picture(args[base+0]);
-		Picture right = picture(args[base+1]);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Picture left = picture(args[base+0], cxt);
+		Picture right = picture(args[base+1], cxt);
 		float la = left.getAspect(), ra = right.getAspect();
 		if (la == 0)
 		    return right;
@@ -210,9 +453,9 @@ public class Picture extends Value implements Drawable {
 	},
 	
 	new PicturePrimitive("&", 2) {
-	    public Value invoke(Value args[], int base) {
-		Picture top = picture(args[base+0]);
-		Picture bottom = picture(args[base+1]);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Picture top = picture(args[base+0], cxt);
+		Picture bottom = picture(args[base+1], cxt);
 		float ta = top.getAspect(), ba = bottom.getAspect();
 		if (ta == 0)
 		    return bottom;
@@ -231,9 +474,9 @@ public class Picture extends Value implements Drawable {
 	},
 	
 	new PicturePrimitive("super", 2) {
-	    public Value invoke(Value args[], int base) {
-		Picture lower = picture(args[base+0]);
-		Picture upper = picture(args[base+1]);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Picture lower = picture(args[base+0], cxt);
+		Picture upper = picture(args[base+1], cxt);
 		float la = lower.getAspect(), ua = upper.getAspect();
 		Tran2D trans;
 		if (la <= ua)
@@ -246,13 +489,13 @@ public class Picture extends Value implements Drawable {
 	},
 	
 	new PicturePrimitive("rot", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		/* A picture that has been rotated anticlockwise by 90 
 		 * degrees.  The colours used for filling rotate in a 
 		 * cycle of four too; this makes Escher pictures come 
 		 * out nicely. */
 
-		final Picture pic = picture(args[base+0]);
+		final Picture pic = picture(args[base+0], cxt);
 		final float r = pic.getAspect();
 		final Tran2D trans = Tran2D.translation(1, 0).rot90();
 		
@@ -262,10 +505,8 @@ public class Picture extends Value implements Drawable {
 		    return new TransPicture (1/r, pic, trans) {
 		    	private static final long serialVersionUID = 1L;
 
-		    	public void paint(int layer, int col, 
-		    		Tablet g, Tran2D t) {
-		    	    int col1 = (col >= 0 ? col+1 : col);
-		    	    super.paint(layer, col1, g, t);
+		    	protected int baseColor(int col) {
+		    	    return (col >= 0 ? col+1 : col);
 		    	}
 		    };
 		}
@@ -273,8 +514,8 @@ public class Picture extends Value implements Drawable {
 	},
 	
 	new PicturePrimitive("colour", 1) {
-	    public Value invoke(Value args[], int base) {
-		final Picture pic = picture(args[base+0]);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		final Picture pic = picture(args[base+0], cxt);
 
 		return new Picture(pic.getAspect(), true) {
 		    private static final long serialVersionUID = 1L;
@@ -285,37 +526,45 @@ public class Picture extends Value implements Drawable {
 			     zero, so indexed fills are enabled */
 			pic.paintPart(layer, 0, g, t);
 		    }
+
+		    protected float[] calcBounds() {
+			return pic.getBounds();
+		    }
+		    
+		    protected int calcAverage(int col, Tablet g) {
+			return g.averageColor(pic, 0);
+		    }
 		};
 	    }
 	},
 	
 	new PicturePrimitive("flip", 1) {
-	    public Value invoke(Value args[], int base) {
-		final Picture pic = picture(args[base+0]);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		final Picture pic = picture(args[base+0], cxt);
 		final Tran2D trans = Tran2D.translation(1, 0).scale(-1, 1);
 		return new TransPicture(pic.getAspect(), pic, trans);
 	    }
 	},
 
 	new PicturePrimitive("stretch", 2) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		final float r = (float) cxt.number(args[base+0]);
-		final Picture pic = picture(args[base+1]);
+		final Picture pic = picture(args[base+1], cxt);
 		return new TransPicture(r * pic.getAspect(), 
 			pic, Tran2D.identity);
 	    }
 	},
 	
 	new PicturePrimitive("aspect", 1) {
-	    public Value invoke(Value args[], int base) {
-		Picture pic = picture(args[base+0]);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Picture pic = picture(args[base+0], cxt);
 		return makeNumValue(pic.getAspect());
 	    }
 	},
 	
 	/** Set the palette of colours used for rendering Escher picture. */
 	new Primitive("palette", 4) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		hbase = (float) cxt.number(args[base+0]);
 		hstep = (float) cxt.number(args[base+1]);
 		svalue = (float) cxt.number(args[base+2]);
@@ -326,8 +575,8 @@ public class Picture extends Value implements Drawable {
 	
 	/** Save a picture on a file */
 	new PicturePrimitive("savepic", 4) {
-	    public Value invoke(Value args[], int base) {
-		Picture pic = picture(args[base+0]);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Picture pic = picture(args[base+0], cxt);
 		String fname = cxt.string(args[base+1]);
 		int meanSize = (int) cxt.number(args[base+2]);
 		float greyLevel = (float) cxt.number(args[base+3]);
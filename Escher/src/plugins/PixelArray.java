@@ -0,0 +1,47 @@
+package plugins;
+
+/** A raster image held in an array of ARGB pixels, row by row from
+ *  the top.  The fields are public so that image operations can work
+ *  on the array directly. */
+public class PixelArray implements Raster {
+    public final int width, height;
+    public final int pixels[];
+    private int modCount = 0;
+
+    public PixelArray(int width, int height, int pixels[]) {
+	if (pixels.length < width * height)
+	    throw new IllegalArgumentException("too few pixels");
+	this.width = width;
+	this.height = height;
+	this.pixels = pixels;
+    }
+
+    public PixelArray(int width, int height) {
+	this(width, height, new int[width * height]);
+    }
+
+    /** Get the pixels of any raster as an array.  A PixelArray is
+     *  returned as it is, not copied. */
+    public static PixelArray of(Raster image) {
+	if (image instanceof PixelArray) return (PixelArray) image;
+	return new PixelArray(image.getWidth(), image.getHeight(), 
+		image.getPixels());
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+
+    public int getRGB(int x, int y) {
+	return pixels[y * width + x];
+    }
+
+    public void setRGB(int x, int y, int rgb) {
+	pixels[y * width + x] = rgb;
+	modCount++;
+    }
+
+    /** The array itself, not a copy */
+    public int[] getPixels() { return pixels; }
+
+    public int getModCount() { return modCount; }
+}
@@ -57,11 +57,25 @@ public class Print {
 		return new Result() {
 		    public Result resume(Evaluator ev) {
 			ev.println(v);
-			Thread.yield();
 			return k.result(v);
 		    }
 		};
 	    }
+	},
+	
+	new Primitive("printflush", 0) {
+	    /* Write out any lines that 'print' is holding back */
+	    @Override
+	    public Result apply(Value[] args, int base, int nargs, 
+		    ErrContext cxt, final Continuation k) {
+		if (nargs != arity) badArity(nargs, cxt);
+		return new Result() {
+		    public Result resume(Evaluator ev) {
+			ev.flushPrint();
+			return k.result(Value.nil);
+		    }
+		};
+	    }
 	}
     };
 }
@@ -97,4 +97,41 @@ public class RGB {
 	return 0xff000000 | (r << 16) | (g << 8) | (b << 0);
     }
 
+    /** For each sector of the colour wheel, which of the values
+     *  (brightness, p, q, t) in fromHSB give red, green and blue.  The
+     *  last entry picks zeros, for a hue that rounds to 6.0, as
+     *  fromHSB does. */
+    private static final int sector[] = {
+	0, 3, 1,  2, 0, 1,  1, 0, 3,  1, 2, 0,  3, 1, 0,  0, 1, 2,  4, 4, 4
+    };
+
+    /** Convert n colours at once.  The array hsb holds triples of hue,
+     *  saturation and brightness.  The results are exactly those of
+     *  fromHSB, but the six-way switch is replaced by a table lookup.
+     *  The only branch left in the loop is the test for grey, which
+     *  has to stay: for a hue that is NaN or rounds to 6.0, grey
+     *  values do not come out of the general formula. */
+    public static void fromHSB(float hsb[], int rgb[], int n) {
+	int v[] = new int[5];
+	for (int i = 0; i < n; i++) {
+	    float hue = hsb[3*i], saturation = hsb[3*i+1], 
+		brightness = hsb[3*i+2];
+	    float h = (hue - (float)Math.floor(hue)) * 6.0f;
+	    float f = h - (float)java.lang.Math.floor(h);
+	    float p = brightness * (1.0f - saturation);
+	    float q = brightness * (1.0f - saturation * f);
+	    float t = brightness * (1.0f - (saturation * (1.0f - f)));
+	    v[0] = (int) (brightness * 255.0f + 0.5f);
+	    v[1] = (int) (p * 255.0f + 0.5f);
+	    v[2] = (int) (q * 255.0f + 0.5f);
+	    v[3] = (int) (t * 255.0f + 0.5f);
+	    int k = 3 * Math.max(0, Math.min((int) h, 6));
+	    if (saturation == 0) {
+		// Grey, whatever the hue
+		v[1] = v[2] = v[3] = v[0]; k = 0;
+	    }
+	    rgb[i] = 0xff000000 | (v[sector[k]] << 16) 
+		| (v[sector[k+1]] << 8) | v[sector[k+2]];
+	}
+    }
 }
@@ -0,0 +1,21 @@
+package plugins;
+
+/** A raster image as the tablets see it: a rectangle of ARGB pixels
+ *  that can be fetched as an array.  Tablets draw images only through
+ *  this interface, so the rasteriser and the vector writers do not
+ *  depend on how images are stored; on Android, geomlab.Image adapts
+ *  a Bitmap, and PixelArray holds the pixels in an array. */
+public interface Raster {
+    public int getWidth();
+    public int getHeight();
+
+    /** Get pixel (x, y), counting from the top left */
+    public int getRGB(int x, int y);
+
+    /** Get all the pixels, row by row from the top */
+    public int[] getPixels();
+
+    /** Number of times the pixels have been changed, so that caches
+     *  of copies can tell when they are stale */
+    public int getModCount();
+}
@@ -0,0 +1,269 @@
+package plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import funbase.ErrContext;
+import funbase.Primitive;
+import funbase.Value;
+
+/** Picture context that outputs Scalable Vector Graphics.
+ *
+ *  Coordinates are in the SVG convention, with y increasing downwards.
+ *  Each tile is written once as a symbol for each layer and colour
+ *  offset that it is drawn with, and each later instance is a use
+ *  element with a transform.  Strokes in symbols are given a
+ *  non-scaling vector effect, so that their width is the same as in
+ *  the rest of the picture whatever the transform.  Images are
+ *  embedded as PNG data, once each. */
+public class SVGWrite extends VectorWriter {
+    public SVGWrite(float width, float height, float slider,
+	    OutputStream out) {
+	super(slider, out);
+
+	put("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+	put("<svg xmlns=\"http://www.w3.org/2000/svg\"");
+	put(" xmlns:xlink=\"http://www.w3.org/1999/xlink\"");
+	put(" width=\"").put(width).put("\" height=\"").put(height);
+	put("\" viewBox=\"0 0 ").put(width).put(' ').put(height).put("\">\n");
+	put("<g stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+    }
+
+    public void close() {
+	put("</g>\n</svg>\n");
+	finish();
+    }
+
+    private void writeColor(String attr, int color) {
+	put(' ').put(attr).put("=\"#").putHex(color, 6).put('"');
+	if (RGB.alpha(color) != 0xff)
+	    put(' ').put(attr).put("-opacity=\"")
+		.put(RGB.alpha(color)/255.0f).put('"');
+    }
+
+    private void writeTransform(Tran2D t) {
+	put(" transform=\"matrix(").put(t.xx(), 4).put(' ')
+	    .put(t.yx(), 4).put(' ').put(t.xy(), 4).put(' ')
+	    .put(t.yy(), 4).put(' ').put(t.x(), 4).put(' ')
+	    .put(t.y(), 4).put(")\"");
+    }
+
+    /** Write points a up to b of a packed array as a subpath */
+    private void writeSubpath(float xy[], int a, int b, int places,
+	    boolean closed) {
+	for (int i = a; i < b; i++) {
+	    put(i == a ? 'M' : 'L').put(xy[2*i], places).put(' ')
+		.put(xy[2*i+1], places);
+	    if (i+1 < b) put(' ');
+	}
+	if (closed) put('Z');
+    }
+
+    private void beginPath() {
+	put("<path d=\"");
+    }
+
+    private void endStroke(int color) {
+	put("\" fill=\"none\"");
+	writeColor("stroke", color);
+	put(" stroke-width=\"").put(lineWidth).put("\"/>\n");
+    }
+
+    private void endFill(int color) {
+	put('"');
+	writeColor("fill", color);
+	put("/>\n");
+    }
+
+    public void drawStroke(Vec2D stroke[], Tran2D t) {
+	beginPath();
+	writeSubpath(transformPoints(stroke, t), 0, stroke.length, 3, false);
+	endStroke(RGB.BLACK);
+    }
+
+    public void fillOutline(Vec2D outline[], int color, Tran2D t) {
+	beginPath();
+	writeSubpath(transformPoints(outline, t), 0, outline.length, 3, true);
+	endFill(color);
+    }
+
+    public void fillOutlines(float coords[], int offsets[],
+	    int specs[], int col, Tran2D t) {
+	int n = offsets[offsets.length-1];
+	float xy[] = transformPoints(coords, n, t);
+	for (int i = 0; i+1 < offsets.length; i++) {
+	    int color = fillColor(specs[i], col);
+	    if (color == RGB.TRANSPARENT) continue;
+	    beginPath();
+	    writeSubpath(xy, offsets[i], offsets[i+1], 3, true);
+	    endFill(color);
+	}
+    }
+
+    /** Draw a batch of strokes as a single path */
+    public void drawStrokes(float coords[], int offsets[], Tran2D t) {
+	if (offsets.length <= 1) return;
+	int n = offsets[offsets.length-1];
+	float xy[] = transformPoints(coords, n, t);
+	beginPath();
+	for (int i = 0; i+1 < offsets.length; i++)
+	    writeSubpath(xy, offsets[i], offsets[i+1], 3, false);
+	endStroke(RGB.BLACK);
+    }
+
+    public void drawLine(Vec2D from, Vec2D to, int color, Tran2D t) {
+	Vec2D a = t.transform(from), b = t.transform(to);
+	put("<path d=\"M").put(a.x).put(' ').put(a.y)
+	    .put('L').put(b.x).put(' ').put(b.y);
+	endStroke(color);
+    }
+
+    public void drawArc(Vec2D centre, float xrad, float yrad,
+	    float start, float extent, int color, Tran2D t) {
+	int n = arcPoints(centre, xrad, yrad, start, extent, t);
+	beginPath();
+	writeSubpath(arcBuffer(), 0, n, 3, false);
+	endStroke(color);
+    }
+
+    /** Names of the symbols that have been written */
+    private final Set<String> symbols = new HashSet<String>(100);
+
+    /** Draw a tile by using a symbol, writing the symbol first if it
+     * is new */
+    @Override
+    public void drawTile(TilePicture tile, int layer, int col, Tran2D t) {
+	int id = findTile(tile);
+	if (id < 0) id = addTile(tile);
+
+	String name;
+	if (layer == Picture.DRAW)
+	    name = "t" + id + "d";
+	else
+	    name = "t" + id + "f" + (col < 0 ? "n" : col % palette.length);
+
+	if (! symbols.contains(name)) {
+	    symbols.add(name);
+	    put("<symbol id=\"").put(name).put("\" overflow=\"visible\">\n");
+	    if (layer == Picture.DRAW) {
+		float xy[] = tile.strokeCoords;
+		int offsets[] = tile.strokeOffsets;
+		beginPath();
+		for (int i = 0; i+1 < offsets.length; i++)
+		    writeSubpath(xy, offsets[i], offsets[i+1], 4, false);
+		put("\" fill=\"none\" stroke=\"#000000\"");
+		put(" vector-effect=\"non-scaling-stroke\"/>\n");
+	    }
+	    else {
+		float xy[] = tile.outlineCoords;
+		int offsets[] = tile.outlineOffsets;
+		for (int i = 0; i+1 < offsets.length; i++) {
+		    int color = fillColor(tile.colours[i], col);
+		    if (color == RGB.TRANSPARENT) continue;
+		    beginPath();
+		    writeSubpath(xy, offsets[i], offsets[i+1], 4, true);
+		    endFill(color);
+		}
+	    }
+	    put("</symbol>\n");
+	}
+
+	put("<use xlink:href=\"#").put(name).put('"');
+	writeTransform(t);
+	if (layer == Picture.DRAW)
+	    put(" stroke-width=\"").put(lineWidth).put('"');
+	put("/>\n");
+    }
+
+    /** Numbers given to images that have been written */
+    private final Map<Raster, Integer> images =
+	new IdentityHashMap<Raster, Integer>();
+
+    public void drawImage(Raster image, Tran2D t) {
+	Integer id = images.get(image);
+	if (id == null) {
+	    id = images.size();
+	    images.put(image, id);
+
+	    int w = image.getWidth(), h = image.getHeight();
+	    int pixels[] = new int[w * h];
+	    for (int y = 0; y < h; y++)
+		for (int x = 0; x < w; x++)
+		    pixels[y*w + x] = image.getRGB(x, y);
+	    ByteArrayOutputStream png = new ByteArrayOutputStream();
+	    try {
+		PNGEncoder.write(pixels, w, h, png);
+	    }
+	    catch (IOException e) {
+		// Can't happen with a byte array
+		throw new Error(e);
+	    }
+
+	    put("<defs><image id=\"i").put(id).put('"');
+	    put(" width=\"1\" height=\"1\" preserveAspectRatio=\"none\"");
+	    put(" xlink:href=\"data:image/png;base64,");
+	    putBase64(png.toByteArray());
+	    put("\"/></defs>\n");
+	}
+
+	// The top row of the image is at the top of the unit square
+	put("<use xlink:href=\"#i").put(id).put('"');
+	writeTransform(t.translate(0, 1).scale(1, -1));
+	put("/>\n");
+    }
+
+    private static final char base64[] =
+	("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+	    + "0123456789+/").toCharArray();
+
+    private void putBase64(byte data[]) {
+	for (int i = 0; i < data.length; i += 3) {
+	    int n = Math.min(3, data.length - i);
+	    int b = (data[i] & 0xff) << 16;
+	    if (n > 1) b |= (data[i+1] & 0xff) << 8;
+	    if (n > 2) b |= (data[i+2] & 0xff);
+	    put(base64[(b >> 18) & 0x3f]).put(base64[(b >> 12) & 0x3f]);
+	    put(n > 1 ? base64[(b >> 6) & 0x3f] : '=');
+	    put(n > 2 ? base64[b & 0x3f] : '=');
+	}
+    }
+
+    public static final Primitive primitives[] =  {
+	/** Save a picture as Scalable Vector Graphics */
+	new Picture.PicturePrimitive("svgwrite", 4) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		Picture pic = picture(args[base+0], cxt);
+		String fname = cxt.string(args[base+1]);
+		float meanSize = (float) cxt.number(args[base+2]);
+		float greyLevel = (float) cxt.number(args[base+3]);
+		int background = RGB.fromRGB(greyLevel, greyLevel, greyLevel);
+
+		// Same dimensions as for epswrite
+		float sqrtAspect = (float) Math.sqrt(pic.getAspect());
+		float width = meanSize * sqrtAspect;
+		float height = meanSize / sqrtAspect;
+
+		try {
+		    OutputStream out = new FileOutputStream(fname);
+		    VectorWriter g = new SVGWrite(width, height, 0.5f, out);
+		    Tran2D t =
+			Tran2D.translation(0, height).scale(width, -height);
+		    pic.draw(g, t, background);
+		    g.close();
+		    if (g.getError() != null) throw g.getError();
+		}
+		catch (IOException e) {
+		    cxt.primFail("I/O failed: " + e.getMessage());
+		}
+
+		return Value.nil;
+	    }
+	}
+    };
+}
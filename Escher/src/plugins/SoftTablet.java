@@ -0,0 +1,601 @@
+package plugins;
+
+import java.util.Arrays;
+
+/** A tablet that draws into an array of ARGB pixels, using a scanline
+ *  rasteriser written in plain Java.  It needs nothing from Android or
+ *  AWT, so pictures can be rendered headless, and it can draw a
+ *  rectangular window of a larger image for use with TiledRenderer.
+ *
+ *  All geometry is computed in the coordinates of the whole image,
+ *  and the window only limits which pixels are written: so drawing an
+ *  image in several windows gives exactly the same pixels as drawing
+ *  it in one.
+ *
+ *  Polygons are filled with the non-zero winding rule, as in PostScript.
+ *  For antialiasing, each row of pixels is sampled on SUB scanlines,
+ *  and the coverage of each span is computed exactly in the horizontal
+ *  direction.  Strokes are drawn as the union of a quadrilateral for
+ *  each segment and a disc at each vertex, giving round caps and
+ *  joins. */
+public class SoftTablet extends Tablet {
+    /** The pixels of the image */
+    private final int pixels[];
+
+    /** Row stride of the pixel array */
+    private final int stride;
+
+    /** The window that we draw in */
+    private final int xbase, ybase, width, height;
+
+    /** Cache of tiles drawn as sprites, or null */
+    private TileCache tileCache = null;
+
+    /** Whether to antialias edges */
+    private boolean antialias = true;
+
+    /** Half the current stroke width */
+    private float halfwidth = 0.5f;
+
+    /** Saved stroke widths */
+    private float saved[] = new float[8];
+    private int nsaved = 0;
+
+    /** Number of samples per pixel in the vertical direction */
+    private static final int SUB = 4;
+
+    /** Make a tablet that draws the region [x0, x0+w) x [y0, y0+h)
+     *  of an image whose pixel (x, y) is pixels[y*stride + x] */
+    public SoftTablet(int pixels[], int stride,
+	    int x0, int y0, int w, int h, float slider) {
+	super(slider);
+	this.pixels = pixels;
+	this.stride = stride;
+	this.xbase = x0; this.ybase = y0;
+	this.width = w; this.height = h;
+	cover = new float[w];
+    }
+
+    /** Make a tablet that draws a sprite for another */
+    private SoftTablet(SoftTablet other, int pixels[], int w, int h) {
+	super(other);
+	this.pixels = pixels;
+	this.stride = w;
+	this.xbase = 0; this.ybase = 0;
+	this.width = w; this.height = h;
+	this.antialias = other.antialias;
+	this.halfwidth = other.halfwidth;
+	this.tileCache = null;
+	cover = new float[w];
+    }
+
+    /** Make a tablet with a fresh image of a given size */
+    public SoftTablet(int width, int height, float slider) {
+	this(new int[width * height], width, 0, 0, width, height, slider);
+    }
+
+    /** A backend that lets TiledRenderer draw with soft tablets */
+    public static final TiledRenderer.Backend backend = backend(null);
+
+    /** A backend whose tablets all draw tiles through a given cache */
+    public static TiledRenderer.Backend backend(final TileCache cache) {
+	return new TiledRenderer.Backend() {
+	    public Tablet makeTablet(int pixels[], int stride,
+		    int x0, int y0, int w, int h, float slider) {
+		SoftTablet g = 
+		    new SoftTablet(pixels, stride, x0, y0, w, h, slider);
+		g.setTileCache(cache);
+		return g;
+	    }
+	};
+    }
+
+    public int[] getPixels() { return pixels; }
+
+    public void setAntialias(boolean antialias) {
+	this.antialias = antialias;
+    }
+
+    /** Set the cache used for tiles, or null to draw them directly,
+     *  which is the default.  Sprites are placed to 1/4 pixel, so a
+     *  cache makes rendering faster but not exact. */
+    public void setTileCache(TileCache tileCache) {
+	this.tileCache = tileCache;
+    }
+
+    public void fillOutline(Vec2D outline[], int color, Tran2D t) {
+	beginPath();
+	path = ensure(path, 2 * outline.length);
+	t.transform(outline, path, 0);
+	npoints = outline.length;
+	fillPath(color);
+    }
+
+    public void drawStroke(Vec2D stroke[], Tran2D t) {
+	strokePolyline(transformPoints(stroke, t), stroke.length, RGB.BLACK);
+    }
+
+    public void fillOutlines(float coords[], int offsets[], 
+	    int specs[], int col, Tran2D t) {
+	for (int i = 0; i+1 < offsets.length; i++) {
+	    int color = fillColor(specs[i], col);
+	    if (color == RGB.TRANSPARENT) continue;
+	    int n = offsets[i+1] - offsets[i];
+	    beginPath();
+	    path = ensure(path, 2*n);
+	    t.transform(coords, 2 * offsets[i], path, 0, n);
+	    npoints = n;
+	    fillPath(color);
+	}
+    }
+
+    public void drawStrokes(float coords[], int offsets[], Tran2D t) {
+	for (int i = 0; i+1 < offsets.length; i++) {
+	    int n = offsets[i+1] - offsets[i];
+	    line = ensure(line, 2*n);
+	    t.transform(coords, 2 * offsets[i], line, 0, n);
+	    strokePolyline(line, n, RGB.BLACK);
+	}
+    }
+
+    /** Scratch space for the points of lines and arcs */
+    private float line[] = new float[64];
+
+    public void drawLine(Vec2D from, Vec2D to, int color, Tran2D t) {
+	line[0] = from.x; line[1] = from.y;
+	line[2] = to.x; line[3] = to.y;
+	t.transform(line, 0, line, 0, 2);
+	strokePolyline(line, 2, color);
+    }
+
+    public void drawLines(float xy[], int colors[], int n, Tran2D t) {
+	float dev[] = transformPoints(xy, 2*n, t);
+	for (int i = 0; i < n; i++) {
+	    System.arraycopy(dev, 4*i, line, 0, 4);
+	    strokePolyline(line, 2, colors[i]);
+	}
+    }
+
+    public void drawArc(Vec2D centre, float xrad, float yrad,
+	    float start, float extent, int color, Tran2D t) {
+	// Choose enough segments that each is about two pixels long
+	float r = Math.max(xrad * (Math.abs(t.xx()) + Math.abs(t.yx())),
+		yrad * (Math.abs(t.xy()) + Math.abs(t.yy())));
+	int n = (int) Math.ceil(Math.abs(extent) / 360 * Math.PI * r);
+	n = Math.max(4, Math.min(n, 1024));
+
+	line = ensure(line, 2 * (n+1));
+	for (int i = 0; i <= n; i++) {
+	    float a = start + extent * i / n;
+	    line[2*i] = centre.x + xrad * Vec2D.cosd(a);
+	    line[2*i+1] = centre.y + yrad * Vec2D.sind(a);
+	}
+	t.transform(line, 0, line, 0, n+1);
+	strokePolyline(line, n+1, color);
+    }
+
+    public void drawImage(Raster image, Tran2D t) {
+	Tran2D inv = t.inverse();
+	if (inv == null) return;
+
+	float b[] = t.transformBox(new float[] { 0, 0, 1, 1 });
+	int px0 = Math.max(xbase, (int) Math.floor(b[0]));
+	int py0 = Math.max(ybase, (int) Math.floor(b[1]));
+	int px1 = Math.min(xbase + width, (int) Math.ceil(b[2]));
+	int py1 = Math.min(ybase + height, (int) Math.ceil(b[3]));
+	if (px0 >= px1 || py0 >= py1) return;
+
+	/* Choose a level of the mip-map with about one image pixel per
+	 * device pixel, from the number of image pixels that one device
+	 * pixel spans in each direction. */
+	MipMap mip = MipMap.get(image);
+	float su = image.getWidth() * (Math.abs(inv.xx()) + Math.abs(inv.xy()));
+	float sv = image.getHeight() * (Math.abs(inv.yx()) + Math.abs(inv.yy()));
+	int k = mip.levelFor(Math.min(su, sv));
+	int src[] = mip.getPixels(k);
+	int w = mip.getWidth(k), h = mip.getHeight(k);
+
+	/* Sample the image at the centre of each pixel.  The image is
+	 * drawn with its top row at the top of the unit square. */
+	for (int py = py0; py < py1; py++) {
+	    for (int px = px0; px < px1; px++) {
+		float x = px + 0.5f, y = py + 0.5f;
+		float u = inv.xx() * x + inv.xy() * y + inv.x();
+		float v = inv.yx() * x + inv.yy() * y + inv.y();
+		if (u < 0 || u >= 1 || v <= 0 || v > 1) continue;
+		int sx = Math.min((int) (u * w), w-1);
+		int sy = Math.min((int) ((1-v) * h), h-1);
+		blend(py * stride + px, src[sy * w + sx], 1.0f);
+	    }
+	}
+    }
+
+    // Tiles
+
+    /** Largest sprite worth caching, in pixels */
+    private static final int MAXSPRITE = 128 * 128;
+
+    /** Steps per pixel when quantising the position of a sprite */
+    private static final int FRACBITS = 2, FRAC = 1 << FRACBITS;
+
+    /** Steps per pixel when quantising the linear part of a transform,
+     * measured at the extremity of the tile */
+    private static final int LINEAR = 8;
+
+    /** Draw a tile using a sprite from the cache.  The linear part of
+     * the transform is rounded so that no point of the tile moves by
+     * more than about 1/LINEAR pixel, and the translation is rounded
+     * to a multiple of 1/FRAC pixel.  The sprite is drawn with the 
+     * rounded transform, less the whole pixels of the translation, so 
+     * that one sprite serves for every instance of the tile with the
+     * same size, orientation and sub-pixel position. */
+    public void drawTile(TilePicture tile, int layer, int col, Tran2D t) {
+	if (tileCache == null) {
+	    tile.defaultDraw(layer, col, this, t);
+	    return;
+	}
+
+	float box[] = tile.getBounds();
+	float ext = Math.max(Math.max(Math.abs(box[0]), Math.abs(box[2])),
+		Math.max(Math.abs(box[1]), Math.abs(box[3])));
+	float q = LINEAR * Math.max(ext, 1.0e-3f);
+	int qx = Math.round(t.x() * FRAC), qy = Math.round(t.y() * FRAC);
+	int matrix[] = {
+	    Math.round(t.xx() * q), Math.round(t.yx() * q),
+	    Math.round(t.xy() * q), Math.round(t.yy() * q),
+	    qx & (FRAC-1), qy & (FRAC-1)
+	};
+	TileCache.Key key = new TileCache.Key(tile, layer, col, palette,
+		halfwidth, antialias, matrix);
+
+	TileCache.Sprite sprite = tileCache.get(key);
+	if (sprite == null) {
+	    Tran2D tq = Tran2D.matrix(matrix[0]/q, matrix[1]/q,
+		    matrix[2]/q, matrix[3]/q,
+		    (float) matrix[4]/FRAC, (float) matrix[5]/FRAC);
+	    float b[] = tq.transformBox(box);
+	    float m = (layer == Picture.DRAW ? halfwidth : 0) + 1;
+	    int x0 = (int) Math.floor(b[0] - m);
+	    int y0 = (int) Math.floor(b[1] - m);
+	    int w = (int) Math.ceil(b[2] + m) - x0;
+	    int h = (int) Math.ceil(b[3] + m) - y0;
+
+	    // Big tiles are cheaper to draw directly
+	    if (w <= 0 || h <= 0 || w * h > MAXSPRITE) {
+		tile.defaultDraw(layer, col, this, t);
+		return;
+	    }
+
+	    SoftTablet g = new SoftTablet(this, new int[w * h], w, h);
+	    tile.defaultDraw(layer, col, g, Tran2D.matrix(tq.xx(), tq.yx(),
+		    tq.xy(), tq.yy(), tq.x() - x0, tq.y() - y0));
+	    sprite = new TileCache.Sprite(g.pixels, x0, y0, w, h);
+	    tileCache.put(key, sprite);
+	}
+
+	stamp(sprite, (qx >> FRACBITS) + sprite.x0, 
+		(qy >> FRACBITS) + sprite.y0);
+    }
+
+    /** Blend a sprite into the window with its top left at (x0, y0) */
+    private void stamp(TileCache.Sprite sprite, int x0, int y0) {
+	drawPixels(sprite.pixels, x0, y0, sprite.width, sprite.height);
+    }
+
+    /** Blend a w x h array of ARGB pixels into the window, with its
+     * top left corner at (x0, y0) in the image */
+    public void drawPixels(int src[], int x0, int y0, int w, int h) {
+	int xa = Math.max(xbase, x0), xb = Math.min(xbase + width, x0 + w);
+	int ya = Math.max(ybase, y0), yb = Math.min(ybase + height, y0 + h);
+
+	for (int y = ya; y < yb; y++) {
+	    int base = (y - y0) * w - x0, dst = y * stride;
+	    for (int x = xa; x < xb; x++) {
+		int p = src[base + x];
+		if (p != RGB.TRANSPARENT) blend(dst + x, p, 1.0f);
+	    }
+	}
+    }
+
+    public void save() {
+	if (nsaved == saved.length)
+	    saved = Arrays.copyOf(saved, 2*nsaved);
+	saved[nsaved++] = halfwidth;
+    }
+
+    public void restore() {
+	if (nsaved > 0) halfwidth = saved[--nsaved];
+    }
+
+    public void setStroke(float width) {
+	// Same scaling as EPSWrite
+	halfwidth = width/4;
+    }
+
+    public boolean isTiny(Tran2D t) {
+	return t.isTiny(0.5f);
+    }
+
+    // Stroking
+
+    /** Stroke a polyline with the current width.  The n vertices
+     * are given as (x, y) pairs. */
+    private void strokePolyline(float xy[], int n, int color) {
+	float r = halfwidth;
+	beginPath();
+
+	for (int i = 0; i+1 < n; i++) {
+	    float xa = xy[2*i], ya = xy[2*i+1];
+	    float xb = xy[2*i+2], yb = xy[2*i+3];
+	    float dx = xb - xa, dy = yb - ya;
+	    float len = (float) Math.sqrt(dx*dx + dy*dy);
+	    if (len == 0) continue;
+	    float nx = -dy * r / len, ny = dx * r / len;
+
+	    /* This quadrilateral has the same orientation as the discs
+	     * made by addDisc, so the non-zero rule fills the union */
+	    addPoint(xa + nx, ya + ny);
+	    addPoint(xb + nx, yb + ny);
+	    addPoint(xb - nx, yb - ny);
+	    addPoint(xa - nx, ya - ny);
+	    closeContour();
+	}
+
+	for (int i = 0; i < n; i++)
+	    addDisc(xy[2*i], xy[2*i+1], r);
+
+	fillPath(color);
+    }
+
+    /** Add a polygonal approximation to a disc as a contour */
+    private void addDisc(float xc, float yc, float r) {
+	int n = (int) Math.min(64, Math.max(8, Math.ceil(2 * r)));
+	for (int i = 0; i < n; i++) {
+	    double a = 2 * Math.PI * i / n;
+	    addPoint(xc + r * (float) Math.cos(a),
+		    yc - r * (float) Math.sin(a));
+	}
+	closeContour();
+    }
+
+    // Path construction
+
+    /** Points in the current path, as (x, y) pairs */
+    private float path[] = new float[128];
+    private int npoints = 0;
+
+    /** Index of the first point in each contour of the path */
+    private int contours[] = new int[16];
+    private int ncontours = 0;
+
+    /** Start a new path */
+    private void beginPath() {
+	npoints = 0; ncontours = 0;
+	contours[0] = 0;
+    }
+
+    /** Add a point to the current contour */
+    private void addPoint(float x, float y) {
+	path = ensure(path, 2 * (npoints+1));
+	path[2*npoints] = x; path[2*npoints+1] = y;
+	npoints++;
+    }
+
+    /** Finish the current contour and start another */
+    private void closeContour() {
+	if (ncontours+1 == contours.length)
+	    contours = Arrays.copyOf(contours, 2*contours.length);
+	contours[++ncontours] = npoints;
+    }
+
+    // Scan conversion
+
+    /** Edges of the path: each runs downwards from (ex, ey0) to y = ey1
+     * with slope edx, and winding direction edir */
+    private float ex[] = new float[64], edx[] = new float[64],
+	ey0[] = new float[64], ey1[] = new float[64];
+    private int edir[] = new int[64];
+    private int nedges = 0;
+
+    /** Edges sorted by ey0, packed with the sort key */
+    private long order[] = new long[64];
+
+    /** Edges that cross the current scanline */
+    private int active[] = new int[32];
+
+    /** Crossing points on the current scanline */
+    private float crossx[] = new float[32];
+    private int crossd[] = new int[32];
+
+    /** Coverage of each pixel in the current row */
+    private final float cover[];
+
+    private void addEdge(float xa, float ya, float xb, float yb) {
+	if (ya == yb) return;
+	if (nedges == ex.length) {
+	    int n = 2*nedges;
+	    ex = Arrays.copyOf(ex, n); edx = Arrays.copyOf(edx, n);
+	    ey0 = Arrays.copyOf(ey0, n); ey1 = Arrays.copyOf(ey1, n);
+	    edir = Arrays.copyOf(edir, n);
+	    order = Arrays.copyOf(order, n);
+	}
+	int dir = 1;
+	if (ya > yb) {
+	    float tx = xa; xa = xb; xb = tx;
+	    float ty = ya; ya = yb; yb = ty;
+	    dir = -1;
+	}
+	ex[nedges] = xa; ey0[nedges] = ya; ey1[nedges] = yb;
+	edx[nedges] = (xb - xa) / (yb - ya);
+	edir[nedges] = dir;
+	nedges++;
+    }
+
+    /** Fill the current path using the non-zero winding rule */
+    private void fillPath(int color) {
+	if (! RGB.isColor(color)) return;
+
+	// Close the last contour if necessary
+	if (contours[ncontours] < npoints) closeContour();
+
+	nedges = 0;
+	float ymin = Float.POSITIVE_INFINITY, ymax = Float.NEGATIVE_INFINITY;
+	for (int c = 0; c < ncontours; c++) {
+	    int a = contours[c], b = contours[c+1];
+	    for (int i = a, j = b-1; i < b; j = i++) {
+		addEdge(path[2*j], path[2*j+1], path[2*i], path[2*i+1]);
+		ymin = Math.min(ymin, path[2*i+1]);
+		ymax = Math.max(ymax, path[2*i+1]);
+	    }
+	}
+	if (nedges == 0) return;
+
+	int row0 = Math.max(ybase, (int) Math.floor(ymin));
+	int row1 = Math.min(ybase + height, (int) Math.ceil(ymax));
+	if (row0 >= row1) return;
+
+	// Sort the edges by their top y coordinate
+	for (int e = 0; e < nedges; e++) {
+	    int bits = Float.floatToIntBits(ey0[e]);
+	    bits ^= (bits >> 31) & 0x7fffffff;
+	    order[e] = ((long) bits << 32) | e;
+	}
+	Arrays.sort(order, 0, nedges);
+
+	int next = 0, nactive = 0;
+	int nsub = (antialias ? SUB : 1);
+	float weight = 1.0f / nsub;
+
+	for (int py = row0; py < row1; py++) {
+	    int xmin = Integer.MAX_VALUE, xmax = Integer.MIN_VALUE;
+
+	    for (int s = 0; s < nsub; s++) {
+		float sy = py + (s + 0.5f) / nsub;
+
+		// Add edges that start above the scanline
+		while (next < nedges) {
+		    int e = (int) order[next];
+		    if (ey0[e] > sy) break;
+		    if (nactive == active.length)
+			active = Arrays.copyOf(active, 2*nactive);
+		    active[nactive++] = e;
+		    next++;
+		}
+
+		// Find crossings and discard edges that end above the line
+		int ncross = 0;
+		for (int k = 0; k < nactive; ) {
+		    int e = active[k];
+		    if (ey1[e] <= sy) {
+			active[k] = active[--nactive];
+			continue;
+		    }
+		    if (ncross == crossx.length) {
+			crossx = Arrays.copyOf(crossx, 2*ncross);
+			crossd = Arrays.copyOf(crossd, 2*ncross);
+		    }
+		    float x = ex[e] + (sy - ey0[e]) * edx[e];
+
+		    // Insertion sort by x
+		    int j = ncross++;
+		    while (j > 0 && crossx[j-1] > x) {
+			crossx[j] = crossx[j-1]; crossd[j] = crossd[j-1]; j--;
+		    }
+		    crossx[j] = x; crossd[j] = edir[e];
+		    k++;
+		}
+
+		// Accumulate coverage for spans with non-zero winding
+		int wind = 0;
+		float left = 0;
+		for (int k = 0; k < ncross; k++) {
+		    if (wind == 0) left = crossx[k];
+		    wind += crossd[k];
+		    if (wind == 0) {
+			long span = addSpan(left, crossx[k], weight);
+			if (span != NOSPAN) {
+			    xmin = Math.min(xmin, (int) (span >> 32));
+			    xmax = Math.max(xmax, (int) span);
+			}
+		    }
+		}
+	    }
+
+	    // Blend the covered pixels of this row
+	    int rowbase = py * stride;
+	    for (int px = xmin; px <= xmax; px++) {
+		float c = cover[px - xbase];
+		if (c > 0) {
+		    blend(rowbase + px, color, Math.min(c, 1.0f));
+		    cover[px - xbase] = 0;
+		}
+	    }
+	}
+    }
+
+    private static final long NOSPAN = Long.MIN_VALUE;
+
+    /** Add coverage for a span [xl, xr) on one scanline, returning the
+     * range of pixels touched packed into a long, or NOSPAN */
+    private long addSpan(float xl, float xr, float weight) {
+	int lo = xbase, hi = xbase + width;
+
+	if (! antialias) {
+	    // Cover the pixels whose centres lie in the span
+	    int il = Math.max(lo, (int) Math.ceil(xl - 0.5f));
+	    int ir = Math.min(hi, (int) Math.ceil(xr - 0.5f));
+	    if (il >= ir) return NOSPAN;
+	    for (int px = il; px < ir; px++) cover[px - lo] += weight;
+	    return ((long) il << 32) | (ir-1);
+	}
+
+	if (xr <= lo || xl >= hi || xl >= xr) return NOSPAN;
+	if (xl < lo) xl = lo;
+	if (xr > hi) xr = hi;
+	int il = (int) Math.floor(xl), ir = (int) Math.floor(xr);
+
+	if (il == ir) {
+	    cover[il - lo] += weight * (xr - xl);
+	    return ((long) il << 32) | il;
+	}
+
+	cover[il - lo] += weight * (il + 1 - xl);
+	for (int px = il+1; px < ir; px++) cover[px - lo] += weight;
+	if (ir < hi && xr > ir) {
+	    cover[ir - lo] += weight * (xr - ir);
+	    return ((long) il << 32) | ir;
+	}
+	return ((long) il << 32) | (ir-1);
+    }
+
+    /** Blend a colour into a pixel with a given coverage */
+    private void blend(int index, int color, float coverage) {
+	int a = Math.round(RGB.alpha(color) * coverage);
+	if (a <= 0) return;
+	if (a >= 255) {
+	    pixels[index] = color | RGB.OPAQUE;
+	    return;
+	}
+
+	int dst = pixels[index];
+	int da = RGB.alpha(dst), dr = RGB.red(dst),
+	    dg = RGB.green(dst), db = RGB.blue(dst);
+
+	if (da < 255) {
+	    /* Over a translucent pixel, such as one in a sprite, weight 
+	     * the existing colour by its alpha as well */
+	    int wd = da * (255 - a) / 255, oa = a + wd;
+	    if (oa == 0) return;
+	    int r = (RGB.red(color) * a + dr * wd) / oa;
+	    int g = (RGB.green(color) * a + dg * wd) / oa;
+	    int b = (RGB.blue(color) * a + db * wd) / oa;
+	    pixels[index] = (oa << 24) | (r << 16) | (g << 8) | b;
+	    return;
+	}
+
+	int r = dr + (RGB.red(color) - dr) * a / 255;
+	int g = dg + (RGB.green(color) - dg) * a / 255;
+	int b = db + (RGB.blue(color) - db) * a / 255;
+	pixels[index] = RGB.OPAQUE | (r << 16) | (g << 8) | b;
+    }
+}
@@ -30,6 +30,7 @@
 
 package plugins;
 
+import funbase.ErrContext;
 import funbase.Primitive;
 import funbase.Value;
 
@@ -38,16 +39,22 @@ public class StringPrims {
     public static final Primitive primitives[] = {	
 	new Primitive("^", 2) {
 	    /* Concatenate two strings */
-	    public Value invoke(Value args[], int base) {
-		String s1 = cxt.string(args[base+0]);
-		String s2 = cxt.string(args[base+1]);
-		return Value.makeStringValue(s1 + s2);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		try {
+		    Value result = args[base+0].concat(args[base+1]);
+		    if (result == null) cxt.primFail("string is too long");
+		    return result;
+		}
+		catch (Value.WrongKindException e) {
+		    cxt.expect("string");
+		    return null;
+		}
 	    }
 	},
 
 	new Primitive("explode", 1) {
 	    /* Split a string into a list of single-character strings */
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		String s = cxt.string(args[base+0]);
 		Value result = Value.nil;
 		for (int i = s.length()-1; i >= 0; i--)
@@ -59,12 +66,48 @@ public class StringPrims {
 
 	new Primitive("implode", 1) {
 	    /* Concatenate a list of strings into a single string */
-	    public Value invoke(Value args[], int base) {
-		StringBuffer result = new StringBuffer();
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		StringBuilder result = new StringBuilder();
 		for (Value xs = args[base+0]; ! xs.isNilValue(); xs = cxt.tail(xs))
 		    result.append(cxt.string(cxt.head(xs)));
 		return Value.makeStringValue(result.toString());
 	    }
+	},
+
+	new Primitive("strlen", 1) {
+	    /* Length of a string */
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		try {
+		    return Value.makeNumValue(args[base+0].stringLength());
+		}
+		catch (Value.WrongKindException e) {
+		    cxt.expect("string");
+		    return null;
+		}
+	    }
+	},
+
+	new Primitive("substr", 3) {
+	    /* Substring with given start and length, counting from 0; 
+	       the range is clipped to fit the string */
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		String s = cxt.string(args[base+0]);
+		double start = cxt.number(args[base+1]);
+		double len = cxt.number(args[base+2]);
+		int a = (int) Math.max(0, Math.min(start, s.length()));
+		int b = (int) Math.max(a, Math.min(start + len, s.length()));
+		return Value.makeStringValue(s.substring(a, b));
+	    }
+	},
+
+	new Primitive("strindex", 2) {
+	    /* Position of the first occurrence of one string in another, 
+	       counting from 0, or -1 if there is none */
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		String s = cxt.string(args[base+0]);
+		String t = cxt.string(args[base+1]);
+		return Value.makeNumValue(s.indexOf(t));
+	    }
 	}
     };
 }
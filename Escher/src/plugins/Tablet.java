@@ -30,7 +30,10 @@
 
 package plugins;
 
-import geomlab.Image;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 /** A 'drawing tablet' on which a picture can be drawn */
 public abstract class Tablet {
@@ -42,20 +45,90 @@ public abstract class Tablet {
 	palette = Picture.makePalette(slider);
     }
 
+    /** Make a tablet that shares the palette of another */
+    protected Tablet(Tablet other) {
+	this.slider = other.slider;
+	this.palette = other.palette;
+    }
+
     public float getSlider() { return slider; }
 
     /** Fill an outline, using the palette for indexed colours */
     public void fillOutline(Vec2D outline[],
 	    int spec, int col, Tran2D t) {
-	if (RGB.isColor(spec)) {
-	    fillOutline(outline, spec, t);
-	}
-	else if (col >= 0) {
-	    int color = palette[(spec + col) % palette.length];
+	int color = fillColor(spec, col);
+	if (color != RGB.TRANSPARENT)
 	    fillOutline(outline, color, t);
+    }
+
+    /* The next two methods draw a batch of polygons under one 
+     * transform.  The points of all the polygons are packed as (x, y)
+     * pairs in a single array coords[], and polygon i occupies points
+     * offsets[i] up to offsets[i+1].  The default implementations
+     * just draw the polygons one at a time, but backends can do 
+     * better. */
+
+    /** Fill a batch of polygons.  Polygon i is filled with colour
+     * or palette index specs[i], interpreted as in fillOutline. */
+    public void fillOutlines(float coords[], int offsets[], 
+	    int specs[], int col, Tran2D t) {
+	for (int i = 0; i+1 < offsets.length; i++) {
+	    int color = fillColor(specs[i], col);
+	    if (color != RGB.TRANSPARENT)
+		fillOutline(unpack(coords, offsets[i], offsets[i+1]), 
+			color, t);
 	}
     }
 
+    /** Draw a batch of strokes */
+    public void drawStrokes(float coords[], int offsets[], Tran2D t) {
+	for (int i = 0; i+1 < offsets.length; i++)
+	    drawStroke(unpack(coords, offsets[i], offsets[i+1]), t);
+    }
+
+    /** Draw n separate line segments.  Segment i runs from 
+     * (xy[4*i], xy[4*i+1]) to (xy[4*i+2], xy[4*i+3]) and has colour
+     * colors[i]. */
+    public void drawLines(float xy[], int colors[], int n, Tran2D t) {
+	for (int i = 0; i < n; i++)
+	    drawLine(new Vec2D(xy[4*i], xy[4*i+1]), 
+		    new Vec2D(xy[4*i+2], xy[4*i+3]), colors[i], t);
+    }
+
+    /** Make an array of vectors from points a up to b of a packed array */
+    private static Vec2D[] unpack(float coords[], int a, int b) {
+	Vec2D poly[] = new Vec2D[b-a];
+	for (int i = a; i < b; i++)
+	    poly[i-a] = new Vec2D(coords[2*i], coords[2*i+1]);
+	return poly;
+    }
+
+    /** Scratch space for transformed points, reused between calls */
+    private float points[] = new float[64];
+
+    /** Transform a polygon into device coordinates, returning an array
+     * of (x, y) pairs that is reused by later calls */
+    protected float[] transformPoints(Vec2D poly[], Tran2D t) {
+	points = ensure(points, 2 * poly.length);
+	t.transform(poly, points, 0);
+	return points;
+    }
+
+    /** Transform the first n points of a packed array into the
+     * same scratch space */
+    protected float[] transformPoints(float coords[], int n, Tran2D t) {
+	points = ensure(points, 2*n);
+	t.transform(coords, 0, points, 0, n);
+	return points;
+    }
+
+    /** Return an array of at least n elements, either a or a copy 
+     * of it that is bigger */
+    protected static float[] ensure(float a[], int n) {
+	if (a.length >= n) return a;
+	return Arrays.copyOf(a, Math.max(n, 2 * a.length));
+    }
+
     public abstract void drawStroke(Vec2D stroke[], Tran2D t);
     public abstract void fillOutline(Vec2D outline[], 
 	    int color, Tran2D t);
@@ -79,10 +152,102 @@ public abstract class Tablet {
     public abstract void setStroke(float width);
     
     /** Draw a raster image */
-    public abstract void drawImage(Image image, Tran2D t);
+    public abstract void drawImage(Raster image, Tran2D t);
     
     public abstract boolean isTiny(Tran2D t);
 
+    /** Clipping rectangle in device coordinates, or null if none */
+    private float clip[] = null;
+
+    /** Allowance for strokes and antialiasing that spill outside
+     * the picture's own rectangle */
+    protected float clipMargin = 2.0f;
+
+    /** Restrict drawing to a rectangle in device coordinates.  Parts 
+     * of a picture that lie wholly outside the rectangle are skipped 
+     * by Picture.paintPart. */
+    public void setClip(float x0, float y0, float x1, float y1) {
+	clip = new float[] { x0, y0, x1, y1 };
+    }
+
+    /** Test whether the image of a box under t misses the clipping 
+     * rectangle.  The box is given as { xmin, ymin, xmax, ymax }. */
+    public boolean isClipped(Tran2D t, float box[]) {
+	if (clip == null) return false;
+	float b[] = t.transformBox(box);
+	return (b[2] + clipMargin < clip[0] || b[0] - clipMargin > clip[2]
+		|| b[3] + clipMargin < clip[1] || b[1] - clipMargin > clip[3]);
+    }
+
+    /** Values for the filter: draw everything, only the parts of a
+     * picture that do not depend on the slider, or only the parts
+     * that do. */
+    public static final int ALL = 0, STATIC = 1, INTERACTIVE = 2;
+
+    private int filter = ALL;
+
+    /** Choose which parts of a picture are drawn; see 
+     * Picture.paintPart */
+    public void setFilter(int filter) { this.filter = filter; }
+
+    public int getFilter() { return filter; }
+
+    /** Area in device space below which a picture is drawn as a patch
+     * of its average colour; zero disables this */
+    private float detailLimit = 0.0f;
+
+    /** Set the level of detail: pictures whose bounding box covers
+     * less than the given area in device space are not traversed, but
+     * their bounding box is filled with their average colour. */
+    public void setDetailLimit(float area) { detailLimit = area; }
+
+    public float getDetailLimit() { return detailLimit; }
+
+    /** Test whether a box is too small under t to be worth drawing 
+     * in detail */
+    public boolean isCoarse(Tran2D t, float box[]) {
+	if (detailLimit <= 0.0f) return false;
+	float area = (box[2] - box[0]) * (box[3] - box[1]);
+	return area * t.areaScale() < detailLimit;
+    }
+
+    /** Cache of average colours for pictures drawn on this tablet, 
+     * indexed by picture and by colour offset */
+    private final Map<Picture, int[]> averages = 
+	new IdentityHashMap<Picture, int[]>();
+
+    /** Find the average colour of the fill layer of a picture, as an
+     * ARGB value where the alpha channel gives the fraction of the
+     * bounding box that is covered. */
+    public int averageColor(Picture pic, int col) {
+	/* Slots 0 .. palette.length-1 hold results for colour offsets,
+	 * the next slot is for col < 0, and the last is a bitmap of the 
+	 * slots that have been filled. */
+	int n = palette.length;
+	int slot = (col < 0 ? n : col % n);
+	int cache[] = averages.get(pic);
+	if (cache == null) {
+	    cache = new int[n+2];
+	    averages.put(pic, cache);
+	}
+	if ((cache[n+1] & (1 << slot)) == 0) {
+	    cache[slot] = pic.calcAverage(col, this);
+	    cache[n+1] |= (1 << slot);
+	}
+	return cache[slot];
+    }
+
+    /** Find the colour used for a fill, or TRANSPARENT if it is not 
+     * drawn */
+    public int fillColor(int spec, int col) {
+	if (RGB.isColor(spec))
+	    return spec;
+	else if (col >= 0)
+	    return palette[(spec + col) % palette.length];
+	else
+	    return RGB.TRANSPARENT;
+    }
+
     public void close() { }
 
     /* These two methods use the default painting methods that
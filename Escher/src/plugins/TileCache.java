@@ -0,0 +1,175 @@
+package plugins;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A cache of tiles that have been scan-converted by SoftTablet.
+ *
+ *  Escher-style tilings show the same tile thousands of times, often
+ *  at only a few different sizes and orientations.  SoftTablet draws
+ *  each tile into a small sprite the first time it sees it under a
+ *  given transform, then blends the sprite into the image for later
+ *  appearances.  Transforms are quantised so that nearby ones can
+ *  share a sprite; see SoftTablet.drawTile.
+ *
+ *  Sprites are discarded least-recently-used first when their total
+ *  size exceeds a budget.  A cache is used only by the tablets it is
+ *  given to, and holds its tiles until they are evicted or the cache
+ *  is dropped; it may be shared between the threads of a
+ *  TiledRenderer through SoftTablet.backend(cache), so its methods
+ *  are synchronized. */
+public class TileCache {
+    /** A tile drawn into an array of ARGB pixels.  The sprite
+     * is placed with its top left corner at (x0, y0) relative to the
+     * whole-pixel part of the translation that it was drawn for. */
+    public static class Sprite {
+	public final int pixels[];
+	public final int x0, y0, width, height;
+
+	public Sprite(int pixels[], int x0, int y0, int width, int height) {
+	    this.pixels = pixels;
+	    this.x0 = x0; this.y0 = y0;
+	    this.width = width; this.height = height;
+	}
+
+	/** Approximate memory used by the sprite, in bytes */
+	public int footprint() {
+	    return 4 * pixels.length + 64;
+	}
+    }
+
+    /** Everything that determines the pixels of a sprite.  Tiles are
+     * compared by identity, because tiles loaded from a saved session
+     * can have the same tileid as ones made since. */
+    public static class Key {
+	private final TilePicture tile;
+	private final int layer, col;
+	private final int palette[];
+	private final float halfwidth;
+	private final boolean antialias;
+	private final int matrix[];
+	private final int hash;
+
+	/** Make a key.  The matrix holds the quantised linear part of
+	 * the transform, then the quantised fraction of the
+	 * translation.  The palette and colour offset are ignored for
+	 * the stroke layer, and the stroke width for the fill layer. */
+	public Key(TilePicture tile, int layer, int col, int palette[],
+		float halfwidth, boolean antialias, int matrix[]) {
+	    this.tile = tile;
+	    this.layer = layer;
+	    this.antialias = antialias;
+	    this.matrix = matrix;
+
+	    if (layer == Picture.FILL) {
+		this.col = (col < 0 ? -1 : col % palette.length);
+		this.palette = palette;
+		this.halfwidth = 0.0f;
+	    }
+	    else {
+		this.col = -1;
+		this.palette = null;
+		this.halfwidth = halfwidth;
+	    }
+
+	    int h = System.identityHashCode(tile);
+	    h = 31 * h + layer;
+	    h = 31 * h + this.col;
+	    h = 31 * h + Arrays.hashCode(this.palette);
+	    h = 31 * h + Float.floatToIntBits(this.halfwidth);
+	    h = 31 * h + (antialias ? 1 : 0);
+	    h = 31 * h + Arrays.hashCode(matrix);
+	    hash = h;
+	}
+
+	@Override
+	public int hashCode() {
+	    return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+	    if (! (o instanceof Key)) return false;
+	    Key k = (Key) o;
+	    return (hash == k.hash && tile == k.tile && layer == k.layer
+		    && col == k.col && halfwidth == k.halfwidth
+		    && antialias == k.antialias
+		    && Arrays.equals(matrix, k.matrix)
+		    && Arrays.equals(palette, k.palette));
+	}
+    }
+
+    /** Limit on the total footprint of the sprites */
+    private final long budget;
+
+    /** Total footprint of the sprites */
+    private long size = 0;
+
+    /** Counters for hits, misses and evictions */
+    private long hits = 0, misses = 0, evictions = 0;
+
+    /** The sprites, in order of use */
+    private final LinkedHashMap<Key, Sprite> sprites =
+	new LinkedHashMap<Key, Sprite>(256, 0.75f, true);
+
+    public TileCache(long budget) {
+	this.budget = budget;
+    }
+
+    /** Find a sprite, or return null if it is not in the cache */
+    public synchronized Sprite get(Key key) {
+	Sprite s = sprites.get(key);
+	if (s != null) hits++; else misses++;
+	return s;
+    }
+
+    /** Add a sprite to the cache, evicting old ones if needed */
+    public synchronized void put(Key key, Sprite s) {
+	if (s.footprint() > budget) return;
+	Sprite old = sprites.put(key, s);
+	if (old != null) size -= old.footprint();
+	size += s.footprint();
+
+	Iterator<Map.Entry<Key, Sprite>> iter =
+	    sprites.entrySet().iterator();
+	while (size > budget && iter.hasNext()) {
+	    Sprite victim = iter.next().getValue();
+	    iter.remove();
+	    size -= victim.footprint();
+	    evictions++;
+	}
+    }
+
+    /** Discard all the sprites */
+    public synchronized void clear() {
+	sprites.clear();
+	size = 0;
+    }
+
+    /** Reset the counters */
+    public synchronized void resetStats() {
+	hits = misses = evictions = 0;
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized long getSize() { return size; }
+    public synchronized int getCount() { return sprites.size(); }
+
+    /** Fraction of lookups that found a sprite */
+    public synchronized float getHitRate() {
+	long n = hits + misses;
+	return (n == 0 ? 0.0f : (float) hits / n);
+    }
+
+    @Override
+    public synchronized String toString() {
+	return String.format("%d sprites, %d bytes; "
+		+ "%d hits, %d misses (%.1f%%), %d evictions",
+		sprites.size(), size, hits, misses,
+		100.0f * getHitRate(), evictions);
+    }
+}
@@ -30,6 +30,11 @@
 
 package plugins;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import funbase.ErrContext;
 import funbase.Primitive;
 import funbase.Value;
 
@@ -37,12 +42,17 @@ import funbase.Value;
 public class TilePicture extends Picture {
     private static final long serialVersionUID = 1L;
 
-    private static int ntiles = 0;
+    private static final AtomicInteger ntiles = new AtomicInteger();
     
-    public final int tileid = ntiles++;
+    public final int tileid = ntiles.getAndIncrement();
     protected Vec2D strokes[][];
     protected Vec2D outlines[][];
     protected int colours[];
+    
+    /* The same strokes and outlines packed for Tablet.drawStrokes and
+     * Tablet.fillOutlines */
+    protected transient float strokeCoords[], outlineCoords[];
+    protected transient int strokeOffsets[], outlineOffsets[];
 
     public TilePicture(float width, float height, 
 	    Vec2D strokes[][], Vec2D outlines[][], int colours[]) {
@@ -50,6 +60,35 @@ public class TilePicture extends Picture {
 	this.strokes = strokes;
 	this.outlines = outlines;
 	this.colours = colours;
+	pack();
+    }
+    
+    /** Fill in the packed arrays of coordinates */
+    private void pack() {
+	strokeOffsets = offsets(strokes);
+	strokeCoords = coords(strokes, strokeOffsets);
+	outlineOffsets = offsets(outlines);
+	outlineCoords = coords(outlines, outlineOffsets);
+    }
+    
+    private static int[] offsets(Vec2D polys[][]) {
+	int offsets[] = new int[polys.length+1];
+	for (int i = 0; i < polys.length; i++)
+	    offsets[i+1] = offsets[i] + polys[i].length;
+	return offsets;
+    }
+    
+    private static float[] coords(Vec2D polys[][], int offsets[]) {
+	float coords[] = new float[2 * offsets[polys.length]];
+	for (int i = 0; i < polys.length; i++)
+	    Tran2D.identity.transform(polys[i], coords, 2 * offsets[i]);
+	return coords;
+    }
+    
+    private void readObject(ObjectInputStream stream) 
+		throws IOException, ClassNotFoundException {
+	stream.defaultReadObject();
+	pack();
     }
     
     public void paint(int layer, int col, Tablet g, Tran2D t) {
@@ -59,26 +98,67 @@ public class TilePicture extends Picture {
     public void defaultDraw(int layer, int col, Tablet g, Tran2D t) {
 	switch (layer) {
 	case Picture.DRAW:
-	    for (int i = 0; i < strokes.length; i++)
-		g.drawStroke(strokes[i], t);
+	    g.drawStrokes(strokeCoords, strokeOffsets, t);
 	    break;
 
 	case Picture.FILL:
-	    for (int i = 0; i < outlines.length; i++)
-		g.fillOutline(outlines[i], colours[i], col, t);
+	    g.fillOutlines(outlineCoords, outlineOffsets, colours, col, t);
 	    break;
 	}
     }
 
+    @Override
+    protected float[] calcBounds() {
+	float box[] = null;
+	box = extend(box, strokes);
+	box = extend(box, outlines);
+	return (box != null ? box : new float[] { 0, 0, 0, 0 });
+    }
+    
+    /** Extend a bounding box to include a set of polygons */
+    private static float[] extend(float box[], Vec2D polys[][]) {
+	for (int i = 0; i < polys.length; i++) {
+	    for (Vec2D v : polys[i]) {
+		if (box == null)
+		    box = new float[] { v.x, v.y, v.x, v.y };
+		else {
+		    box[0] = Math.min(box[0], v.x); 
+		    box[1] = Math.min(box[1], v.y);
+		    box[2] = Math.max(box[2], v.x); 
+		    box[3] = Math.max(box[3], v.y);
+		}
+	    }
+	}
+	return box;
+    }
+    
+    @Override
+    protected int calcAverage(int col, Tablet g) {
+	float b[] = getBounds();
+	float area = (b[2] - b[0]) * (b[3] - b[1]);
+	if (area <= 0) return RGB.TRANSPARENT;
+	
+	ColorMix mix = new ColorMix();
+	for (int i = 0; i < outlines.length; i++)
+	    mix.add(g.fillColor(colours[i], col), area(outlines[i])/area);
+	return mix.get();
+    }
+    
+    /** Compute the (unsigned) area of a polygon */
+    private static float area(Vec2D poly[]) {
+	float sum = 0;
+	for (int i = 0, j = poly.length-1; i < poly.length; j = i++)
+	    sum += poly[j].x * poly[i].y - poly[i].x * poly[j].y;
+	return Math.abs(sum) / 2;
+    }
+
     public static final Primitive primitives[] = {
 	new PicturePrimitive("tile", 6) {
-	    private float width, height, xshift, yshift;
-
-	    public Value invoke(Value args[], int base) {
-		width = (float) cxt.number(args[base+0]);
-		height = (float) cxt.number(args[base+1]);
-		xshift = (float) cxt.number(args[base+2]);
-		yshift = (float) cxt.number(args[base+3]);
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		float width = (float) cxt.number(args[base+0]);
+		float height = (float) cxt.number(args[base+1]);
+		float xshift = (float) cxt.number(args[base+2]);
+		float yshift = (float) cxt.number(args[base+3]);
 		int nStrokes = cxt.listLength(args[base+4]);
 		int nOutlines = cxt.listLength(args[base+5]);
 		Vec2D strokes[][] = new Vec2D[nStrokes][], 
@@ -86,9 +166,13 @@ public class TilePicture extends Picture {
 		int colours[] = new int[nOutlines];
 		Value xss;
 
+		/* Points are shifted by (xshift, yshift) and scaled by
+		 * (1/width, 1/height) */
+		float shape[] = { width, height, xshift, yshift };
+
 		xss = args[base+4];
 		for (int i = 0; i < nStrokes; i++) {
-		    strokes[i] = convertPolygon(cxt.head(xss));
+		    strokes[i] = convertPolygon(cxt.head(xss), shape, cxt);
 		    xss = cxt.tail(xss);
 		}
 
@@ -97,12 +181,12 @@ public class TilePicture extends Picture {
 		    Value xs = cxt.head(xss);
 		    Value spec = cxt.head(xs);
 		    if (spec instanceof ColorValue)
-			colours[i] = color(spec).asColor();
+			colours[i] = color(spec, cxt).asColor();
 		    else if (spec.isNumValue())
 			colours[i] = (int) cxt.number(spec);
 		    else
 			cxt.expect("colour or integer");
-		    outlines[i] = convertPolygon(cxt.tail(xs));
+		    outlines[i] = convertPolygon(cxt.tail(xs), shape, cxt);
 		    xss = cxt.tail(xss);
 		}
 
@@ -110,7 +194,10 @@ public class TilePicture extends Picture {
 			outlines, colours);
 	    }
 	    
-	    private Vec2D[] convertPolygon(Value xs) {
+	    private Vec2D[] convertPolygon(Value xs, float shape[],
+		    ErrContext cxt) {
+		float width = shape[0], height = shape[1];
+		float xshift = shape[2], yshift = shape[3];
 		int nPoints = cxt.listLength(xs) / 2;
 		Vec2D poly[] = new Vec2D[nPoints];
 		for (int i = 0; i < nPoints; i++) {
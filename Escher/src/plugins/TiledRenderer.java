@@ -0,0 +1,167 @@
+package plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** An off-screen renderer that divides the target image into square
+ *  tiles and draws them in parallel.
+ *
+ *  Each tile is drawn on its own Tablet, clipped to the tile, so that
+ *  parts of the picture that miss the tile are skipped by
+ *  Picture.paintPart.  Every tile sees the same transform as a
+ *  single tablet covering the whole image would, and the backend
+ *  subtracts the (integer) tile origin itself, so the result is the
+ *  same as drawing the picture in one piece. */
+public class TiledRenderer {
+    /** A source of tablets that draw into part of an ARGB pixel array */
+    public interface Backend {
+	/** Make a tablet that draws the region [x0, x0+w) x [y0, y0+h)
+	 * of the image.  Pixel (x, y) of the image is stored in
+	 * pixels[y*stride + x]. */
+	public Tablet makeTablet(int pixels[], int stride,
+		int x0, int y0, int w, int h, float slider);
+    }
+
+    private final Backend backend;
+    private final int tileSize;
+    private final int nthreads;
+
+    public TiledRenderer(Backend backend, int tileSize, int nthreads) {
+	this.backend = backend;
+	this.tileSize = tileSize;
+	this.nthreads = nthreads;
+    }
+
+    public TiledRenderer(Backend backend) {
+	this(backend, 256, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Render a picture into a fresh array of width * height pixels */
+    public int[] render(Drawable pic, int width, int height,
+	    float slider, int background) {
+	int pixels[] = new int[width * height];
+	render(pic, pixels, width, height, slider, background);
+	return pixels;
+    }
+
+    /** Render a picture into an existing pixel array */
+    public void render(final Drawable pic, final int pixels[],
+	    final int width, final int height,
+	    final float slider, final int background) {
+	List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+	for (int y = 0; y < height; y += tileSize) {
+	    for (int x = 0; x < width; x += tileSize) {
+		final int x0 = x, y0 = y;
+		final int w = Math.min(tileSize, width - x);
+		final int h = Math.min(tileSize, height - y);
+
+		tasks.add(new Callable<Void>() {
+		    public Void call() {
+			Tablet g = backend.makeTablet(pixels, width,
+				x0, y0, w, h, slider);
+			g.setClip(x0, y0, x0+w, y0+h);
+			pic.draw(g, width, height, background);
+			g.close();
+			return null;
+		    }
+		});
+	    }
+	}
+
+	if (nthreads <= 1 || tasks.size() <= 1) {
+	    for (Callable<Void> task : tasks) {
+		try {
+		    task.call();
+		}
+		catch (Exception e) {
+		    throw wrap(e);
+		}
+	    }
+	    return;
+	}
+
+	/* Run nthreads workers that take tiles from the list in turn, one
+	 * of them on this thread and the others from the shared pool. */
+	final List<Callable<Void>> queue = tasks;
+	final AtomicInteger next = new AtomicInteger(0);
+	Callable<Void> worker = new Callable<Void>() {
+	    public Void call() throws Exception {
+		int i;
+		while ((i = next.getAndIncrement()) < queue.size())
+		    queue.get(i).call();
+		return null;
+	    }
+	};
+
+	int n = Math.min(nthreads, tasks.size());
+	List<Future<Void>> helpers = new ArrayList<Future<Void>>(n-1);
+	ExecutorService pool = getPool();
+	for (int i = 1; i < n; i++)
+	    helpers.add(pool.submit(worker));
+
+	Throwable failure = null;
+	try {
+	    worker.call();
+	}
+	catch (Throwable e) {
+	    // Stop the helpers taking more tiles
+	    next.set(tasks.size());
+	    failure = e;
+	}
+
+	boolean interrupted = false;
+	for (Future<Void> f : helpers) {
+	    while (true) {
+		try {
+		    f.get();
+		    break;
+		}
+		catch (InterruptedException e) {
+		    // The helpers write into pixels, so wait for them anyway
+		    interrupted = true;
+		}
+		catch (ExecutionException e) {
+		    if (failure == null) failure = e.getCause();
+		    break;
+		}
+	    }
+	}
+	if (interrupted) Thread.currentThread().interrupt();
+	if (failure != null) throw wrap(failure);
+    }
+
+    /** Threads shared by all renderers.  They are daemons, so they do
+     * not keep the program alive, and idle ones are discarded after a
+     * minute. */
+    private static ExecutorService pool = null;
+
+    private static synchronized ExecutorService getPool() {
+	if (pool == null) {
+	    pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "TiledRenderer");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	}
+	return pool;
+    }
+
+    private static RuntimeException wrap(Throwable e) {
+	if (e instanceof RuntimeException)
+	    return (RuntimeException) e;
+	else if (e instanceof Error)
+	    throw (Error) e;
+	else
+	    return new RuntimeException(e);
+    }
+}
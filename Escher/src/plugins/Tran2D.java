@@ -54,6 +54,28 @@ public class Tran2D implements java.io.Serializable {
 		m_yx * a.x + m_yy * a.y + m_y);
     }
     
+    /** Transform an array of points, storing the results as (x, y) 
+     *  pairs in dst from index off onwards.  Unlike transform(Vec2D),
+     *  this allocates nothing. */
+    public void transform(Vec2D src[], float dst[], int off) {
+	for (int i = 0; i < src.length; i++) {
+	    Vec2D a = src[i];
+	    dst[off++] = m_xx * a.x + m_xy * a.y + m_x;
+	    dst[off++] = m_yx * a.x + m_yy * a.y + m_y;
+	}
+    }
+    
+    /** Transform n points stored as (x, y) pairs in src, storing the
+     *  results in dst.  The two arrays may be the same. */
+    public void transform(float src[], int srcoff, 
+	    float dst[], int dstoff, int n) {
+	for (int i = 0; i < n; i++) {
+	    float x = src[srcoff++], y = src[srcoff++];
+	    dst[dstoff++] = m_xx * x + m_xy * y + m_x;
+	    dst[dstoff++] = m_yx * x + m_yy * y + m_y;
+	}
+    }
+    
     public Vec2D getOrigin() { return new Vec2D(m_x, m_y); }
     public Vec2D getXaxis() { return new Vec2D(m_xx, m_yx); }
     public Vec2D getYaxis() { return new Vec2D(m_xy, m_yy); }
@@ -90,6 +112,12 @@ public class Tran2D implements java.io.Serializable {
 		m_xy * sy, m_yy * sy, m_x, m_y);
     }
     
+    /** Make a transform from the entries of its matrix */
+    public static Tran2D matrix(float xx, float yx, float xy, float yy,
+	    float x, float y) {
+	return new Tran2D(xx, yx, xy, yy, x, y);
+    }
+    
     public static Tran2D scaling(float sx, float sy) {
 	return new Tran2D(sx, 0, 0, sy, 0, 0);
     }
@@ -113,6 +141,14 @@ public class Tran2D implements java.io.Serializable {
 	return new Tran2D(c, s, -s, c, 0, 0);
     }
     
+    /** Compute the inverse transform, or null if it is singular */
+    public Tran2D inverse() {
+	float det = m_xx * m_yy - m_xy * m_yx;
+	if (det == 0) return null;
+	return new Tran2D(m_yy/det, -m_yx/det, -m_xy/det, m_xx/det,
+		(m_xy * m_y - m_yy * m_x)/det, (m_yx * m_x - m_xx * m_y)/det);
+    }
+    
     public static final Tran2D identity = new Tran2D(1, 0, 0, 1, 0, 0);
     
     /* The coordinates are perturbed by 0.001 before rounding so that
@@ -129,6 +165,26 @@ public class Tran2D implements java.io.Serializable {
 	return (int) Math.round(m_yx * a.x + m_yy * a.y + m_y + 0.001);
     }
     
+    /** Compute the bounding box of the image of a box, with both
+     *  given as { xmin, ymin, xmax, ymax } */
+    public float[] transformBox(float box[]) {
+	return new float[] {
+		m_x + Math.min(m_xx * box[0], m_xx * box[2])
+			+ Math.min(m_xy * box[1], m_xy * box[3]),
+		m_y + Math.min(m_yx * box[0], m_yx * box[2])
+			+ Math.min(m_yy * box[1], m_yy * box[3]),
+		m_x + Math.max(m_xx * box[0], m_xx * box[2])
+			+ Math.max(m_xy * box[1], m_xy * box[3]),
+		m_y + Math.max(m_yx * box[0], m_yx * box[2])
+			+ Math.max(m_yy * box[1], m_yy * box[3])
+	};
+    }
+    
+    /** Factor by which the transform multiplies areas */
+    public float areaScale() {
+	return Math.abs(m_xx * m_yy - m_xy * m_yx);
+    }
+    
     public boolean isTiny(float eps) {
 	return Math.abs(m_xx) <= eps && Math.abs(m_yx) <= eps 
 		|| Math.abs(m_xy) <= eps && Math.abs(m_yy) <= eps;
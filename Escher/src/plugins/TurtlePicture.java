@@ -32,6 +32,7 @@ package plugins;
 
 import java.io.PrintWriter;
 
+import funbase.ErrContext;
 import funbase.Evaluator;
 import funbase.Primitive;
 import funbase.Value;
@@ -48,17 +49,28 @@ public class TurtlePicture extends Picture {
     private static final int STROKE_COLOR = RGB.BLACK;
 
     public TurtlePicture(Command commands[]) {
-	super(calcAspect(commands));
+	this(commands, findBounds(commands));
+    }
+    
+    private TurtlePicture(Command commands[], float bounds[]) {
+	super(aspect(bounds));
 	this.commands = commands;
-	this.xmin = _xmin; this.xmax = _xmax;
-	this.ymin = _ymin; this.ymax = _ymax;
+	this.xmin = bounds[0]; this.ymin = bounds[1];
+	this.xmax = bounds[2]; this.ymax = bounds[3];
     }
 
-    // Global variables (yuck!) for values returned by calcAspect
-    private static float _xmin, _xmax, _ymin, _ymax;
-
-    /** Calculate aspect ratio and set _xmin, etc. */
+    /** Calculate aspect ratio */
     public static float calcAspect(Command commands[]) {
+	return aspect(findBounds(commands));
+    }
+    
+    private static float aspect(float bounds[]) {
+	return (bounds[2] - bounds[0])/(bounds[3] - bounds[1]);
+    }
+    
+    /** Calculate the bounding box { xmin, ymin, xmax, ymax } of the 
+     * path, allowing a margin of 1 on each side */
+    private static float[] findBounds(Command commands[]) {
 	float x = 0, y = 0, dir = 0;
 	float xmin = -1, xmax = 1, ymin = -1, ymax = 1;
 	
@@ -97,9 +109,7 @@ public class TurtlePicture extends Picture {
 	    if (y+1 > ymax) ymax = y+1;
 	}
 	
-	_xmin = xmin; _xmax = xmax;
-	_ymin = ymin; _ymax = ymax; 
-	return (xmax - xmin)/(ymax - ymin); 
+	return new float[] { xmin, ymin, xmax, ymax };
     }
     
     /** Make a vector by scaling coords */
@@ -212,7 +222,7 @@ public class TurtlePicture extends Picture {
 	    this.kind = kind;
 	}
 	
-	public Value invoke(Value args[], int base) {
+	public Value invoke(Value args[], int base, ErrContext cxt) {
 	    return new Command(kind, (float) cxt.number(args[base+0]));
 	}
 	
@@ -231,7 +241,7 @@ public class TurtlePicture extends Picture {
     
     public static final Primitive primitives[] = {
 	new Primitive("turtle", 1) {
-	    public Value invoke(Value args[], int base) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
 		Value xs = args[base+0];
 		Command commands[] = new Command[cxt.listLength(xs)];
 		
@@ -0,0 +1,261 @@
+package plugins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/** Common machinery for tablets that write a vector file: EPSWrite,
+ *  PDFWrite and SVGWrite.
+ *
+ *  Text is formatted straight into a byte buffer that is written to
+ *  the output stream when it fills, and numbers are converted by hand
+ *  rather than with printf.  The writer counts the bytes written, for
+ *  formats like PDF that need to record file offsets.  Since Tablet
+ *  methods cannot throw IOException, the first exception is saved and
+ *  later output is discarded; the caller should check getError after
+ *  closing the tablet.
+ *
+ *  Each TilePicture is given a number the first time it is drawn, so
+ *  that subclasses can write its geometry once and refer to it for
+ *  later instances. */
+public abstract class VectorWriter extends Tablet {
+    private final OutputStream out;
+    
+    /** Where output goes: the file, or a buffer while diverted */
+    private OutputStream sink;
+    
+    private final byte buf[] = new byte[1 << 16];
+    private int nbuf = 0;
+    private long flushed = 0;
+    private IOException error = null;
+
+    protected VectorWriter(float slider, OutputStream out) {
+	super(slider);
+	this.out = this.sink = out;
+    }
+
+    /** Return the first I/O error, or null if there was none */
+    public IOException getError() { return error; }
+
+    /** Number of bytes written so far, not counting diverted output */
+    protected long position() {
+	return flushed + nbuf;
+    }
+
+    /** Write out the buffer */
+    protected void flush() {
+	if (error == null) {
+	    try {
+		sink.write(buf, 0, nbuf);
+	    }
+	    catch (IOException e) {
+		error = e;
+	    }
+	}
+	if (sink == out) flushed += nbuf;
+	nbuf = 0;
+    }
+
+    /** Send output to another stream until undivert is called.  This
+     * lets a subclass prepare an object that must appear later in the
+     * file than the output that is being written now. */
+    protected void divert(OutputStream s) {
+	flush();
+	sink = s;
+    }
+
+    /** Send output to the file again */
+    protected void undivert() {
+	flush();
+	sink = out;
+    }
+
+    /** Flush and close the output stream */
+    protected void finish() {
+	flush();
+	try {
+	    out.close();
+	}
+	catch (IOException e) {
+	    if (error == null) error = e;
+	}
+    }
+
+    // Formatting
+
+    protected VectorWriter put(char c) {
+	if (nbuf == buf.length) flush();
+	buf[nbuf++] = (byte) c;
+	return this;
+    }
+
+    protected VectorWriter put(String s) {
+	for (int i = 0; i < s.length(); i++) put(s.charAt(i));
+	return this;
+    }
+
+    protected VectorWriter put(byte b[], int off, int len) {
+	for (int i = 0; i < len; i++) {
+	    if (nbuf == buf.length) flush();
+	    buf[nbuf++] = b[off+i];
+	}
+	return this;
+    }
+
+    /** Scratch space for the digits of a number */
+    private final char digits[] = new char[20];
+
+    protected VectorWriter put(long n) {
+	if (n < 0) {
+	    put('-');
+	    if (n == Long.MIN_VALUE) return put("9223372036854775808");
+	    n = -n;
+	}
+	int k = digits.length;
+	do {
+	    digits[--k] = (char) ('0' + n % 10);
+	    n /= 10;
+	} while (n > 0);
+	while (k < digits.length) put(digits[k++]);
+	return this;
+    }
+
+    private static final double scale[] = {
+	1, 10, 100, 1000, 10000, 100000, 1000000
+    };
+
+    /** Write a number rounded to a given number of decimal places,
+     * without trailing zeros */
+    protected VectorWriter put(float x, int places) {
+	if (Float.isNaN(x) || Float.isInfinite(x)) return put('0');
+	long v = Math.round(Math.abs((double) x) * scale[places]);
+	if (v == 0) return put('0');
+	if (x < 0) put('-');
+	long p = (long) scale[places];
+	put(v / p);
+	long frac = v % p;
+	if (frac != 0) {
+	    put('.');
+	    while (frac % 10 == 0) { frac /= 10; places--; }
+	    long q = (long) scale[places-1];
+	    while (q > 0) {
+		put((char) ('0' + frac / q));
+		frac %= q; q /= 10;
+	    }
+	}
+	return this;
+    }
+
+    /** Write a number with three decimal places */
+    protected VectorWriter put(float x) {
+	return put(x, 3);
+    }
+
+    private static final char hexdigit[] = "0123456789abcdef".toCharArray();
+
+    /** Write the low-order ndigits hex digits of n */
+    protected VectorWriter putHex(int n, int ndigits) {
+	for (int i = 4 * (ndigits-1); i >= 0; i -= 4)
+	    put(hexdigit[(n >> i) & 0xf]);
+	return this;
+    }
+
+    /** Write the points a up to b of a packed array, separated by
+     * spaces with op after the first point and op2 after each of the
+     * others.  Either op may be null. */
+    protected void putPoints(float xy[], int a, int b, int places,
+	    String op, String op2) {
+	for (int i = a; i < b; i++) {
+	    put(xy[2*i], places).put(' ').put(xy[2*i+1], places);
+	    String s = (i == a ? op : op2);
+	    if (s != null) put(' ').put(s);
+	    put(i+1 < b ? ' ' : '\n');
+	}
+    }
+
+    /** Write n in a field of given width, padded with zeros */
+    protected VectorWriter putPadded(long n, int width) {
+	int k = 1;
+	for (long m = n/10; m > 0; m /= 10) k++;
+	for (; k < width; k++) put('0');
+	return put(n);
+    }
+
+    // Stroke width
+
+    /** The current width for strokes */
+    protected float lineWidth = 0.4f;
+
+    /** Saved stroke widths */
+    private float saved[] = new float[8];
+    private int nsaved = 0;
+
+    public void save() {
+	if (nsaved == saved.length) saved = ensure(saved, nsaved+1);
+	saved[nsaved++] = lineWidth;
+    }
+
+    public void restore() {
+	if (nsaved > 0) lineWidth = saved[--nsaved];
+    }
+
+    public void setStroke(float width) {
+	// Same scaling as EPSWrite
+	lineWidth = width/2;
+    }
+
+    // Tiles
+
+    /** Numbers assigned to tiles that have been written.  Tiles are
+     * compared by identity because tileids are not unique once a saved
+     * session has been loaded. */
+    private final Map<TilePicture, Integer> tiles =
+	new IdentityHashMap<TilePicture, Integer>();
+
+    /** Return the number of a tile that has been written, or -1 */
+    protected int findTile(TilePicture tile) {
+	Integer k = tiles.get(tile);
+	return (k == null ? -1 : k);
+    }
+
+    /** Give a number to a new tile */
+    protected int addTile(TilePicture tile) {
+	int k = tiles.size();
+	tiles.put(tile, k);
+	return k;
+    }
+
+    // Geometry
+
+    /** Scratch space for the points of an arc */
+    private float arc[] = new float[64];
+
+    /** Compute points along an arc, as for drawArc, and transform
+     * them by t.  The number of segments is chosen so that each is at
+     * most about one unit long after transforming.  The result is
+     * the number of points, which are left in arcBuffer(). */
+    protected int arcPoints(Vec2D centre, float xrad, float yrad,
+	    float start, float extent, Tran2D t) {
+	float r = Math.max(xrad * (Math.abs(t.xx()) + Math.abs(t.yx())),
+		yrad * (Math.abs(t.xy()) + Math.abs(t.yy())));
+	int n = (int) Math.ceil(Math.abs(extent) / 180 * Math.PI * r);
+	n = Math.max(4, Math.min(n, 256));
+
+	arc = ensure(arc, 2 * (n+1));
+	for (int i = 0; i <= n; i++) {
+	    float a = start + extent * i / n;
+	    arc[2*i] = centre.x + xrad * Vec2D.cosd(a);
+	    arc[2*i+1] = centre.y + yrad * Vec2D.sind(a);
+	}
+	t.transform(arc, 0, arc, 0, n+1);
+	return n+1;
+    }
+
+    /** The points computed by the last call of arcPoints */
+    protected float[] arcBuffer() { return arc; }
+
+    public boolean isTiny(Tran2D t) {
+	return t.isTiny(0.5f);
+    }
+}
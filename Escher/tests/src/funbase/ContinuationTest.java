@@ -0,0 +1,121 @@
+package funbase;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import funbase.Evaluator.Continuation;
+import funbase.Evaluator.Result;
+import funbase.Machine.ByteCode;
+import plugins.ListPrims;
+import plugins.Memo;
+
+/** Resume a captured continuation more than once, through machine
+ *  frames, a ListPrims step and a Memo continuation */
+public class ContinuationTest extends TestCase {
+    private static final int ARG = Machine.ARG, INT = Machine.INT,
+	CONST = Machine.CONST, LIST = Machine.LIST, CALL = Machine.CALL,
+	RETURN = Machine.RETURN;
+
+    private static final Primitive plus = new Primitive("+", 2) {
+	public Value invoke(Value args[], int base, ErrContext cxt) {
+	    return Value.makeNumValue(cxt.number(args[base+0]) 
+		    + cxt.number(args[base+1]));
+	}
+    };
+
+    private static final Primitive sum = new Primitive("sum", 1) {
+	public Value invoke(Value args[], int base, ErrContext cxt) {
+	    double s = 0;
+	    for (Value xs = args[base+0]; ! xs.isNilValue(); xs = cxt.tail(xs))
+		s += cxt.number(cxt.head(xs));
+	    return Value.makeNumValue(s);
+	}
+    };
+
+    private static Primitive library(String name) {
+	for (Primitive p : ListPrims.library)
+	    if (p.getName().equals(name)) return p;
+	throw new IllegalArgumentException(name);
+    }
+
+    /** A function that captures its continuation the first time it
+     * is called, and returns its argument */
+    private static class Capture extends Function {
+	Continuation saved = null;
+
+	Capture() { super("capture", 1); }
+
+	public void printOn(PrintWriter out) { out.print("<capture>"); }
+
+	public Result apply(Value args[], int base, int nargs,
+		ErrContext cxt, Continuation k) {
+	    if (saved == null) saved = k.copy();
+	    return k.result(args[base]);
+	}
+    }
+
+    private static Function closure(String name, int arity, int ssize,
+	    int code[], Value consts[]) {
+	int n = code.length / 2;
+	int instrs[] = new int[n], rands[] = new int[n];
+	for (int i = 0; i < n; i++) {
+	    instrs[i] = code[2*i]; rands[i] = code[2*i+1];
+	}
+	return new Function.Closure(new ByteCode(name, arity, 0, ssize, 
+		instrs, rands, consts), new Value[1]);
+    }
+
+    private final List<Double> answers = new ArrayList<Double>();
+
+    private final Continuation done = new Continuation() {
+	public Result result(Value v) {
+	    try {
+		answers.add(v.asNumber());
+	    }
+	    catch (Value.WrongKindException e) {
+		fail("not a number");
+	    }
+	    return null;
+	}
+    };
+
+    private static void run(Result r) {
+	while (r != null) r = r.resume(null);
+    }
+
+    public void testResumeTwice() {
+	Capture capture = new Capture();
+	Value f = new Memo(capture, 10);
+
+	/* inner(x) = 10 + sum(map(f, [x, 2])), with 10 waiting on the
+	   stack during the call of map */
+	Function inner = closure("inner", 1, 6, new int[] {
+		INT, 10, CONST, 0, ARG, 0, INT, 2, LIST, 2, CONST, 1, CALL, 2,
+		CONST, 2, CALL, 1, CONST, 3, CALL, 2, RETURN, 0
+	    }, new Value[] { f, library("map"), sum, plus });
+
+	// outer(x) = 1000 + inner(x)
+	Function outer = closure("outer", 1, 4, new int[] {
+		INT, 1000, ARG, 0, CONST, 0, CALL, 1, CONST, 1, CALL, 2, 
+		RETURN, 0
+	    }, new Value[] { inner, plus });
+
+	run(outer.apply(new Value[] { Value.makeNumValue(5) }, 0, 1, 
+		ErrContext.initContext, done));
+	assertNotNull(capture.saved);
+
+	// Each resume sees the frames as they were when captured
+	Continuation k = capture.saved;
+	run(k.copy().result(Value.makeNumValue(7)));
+	run(k.copy().result(Value.makeNumValue(20)));
+	run(k.copy().result(Value.makeNumValue(7)));
+
+	assertEquals(4, answers.size());
+	assertEquals(1017.0, answers.get(0), 0.0);
+	assertEquals(1019.0, answers.get(1), 0.0);
+	assertEquals(1032.0, answers.get(2), 0.0);
+	assertEquals(1019.0, answers.get(3), 0.0);
+    }
+}
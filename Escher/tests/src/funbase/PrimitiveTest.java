@@ -0,0 +1,67 @@
+package funbase;
+
+import junit.framework.TestCase;
+import funbase.Evaluator.Continuation;
+import funbase.Evaluator.EvalException;
+import funbase.Evaluator.Result;
+
+public class PrimitiveTest extends TestCase {
+    private static Primitive numeric(String name) {
+	return new Primitive(name, 1) {
+	    public Value invoke(Value args[], int base, ErrContext cxt) {
+		return Value.makeNumValue(cxt.number(args[base+0]) + 1);
+	    }
+	};
+    }
+
+    private static final Continuation done = new Continuation() {
+	public Result result(Value v) { return null; }
+    };
+
+    /** Call p with a bad argument and return the message */
+    private static String failure(Primitive p, ErrContext cxt) {
+	try {
+	    p.apply(new Value[] { Value.makeStringValue("x") }, 0, 1, 
+		    cxt, done);
+	    return null;
+	}
+	catch (EvalException e) {
+	    return e.getMessage();
+	}
+    }
+
+    public void testTypeErrorNamesPrimitive() {
+	assertEquals("'first' expects a numeric argument",
+		failure(numeric("first"), ErrContext.initContext));
+	assertEquals("'first' expects a numeric argument in function f",
+		failure(numeric("first"), new ErrContext("f")));
+    }
+
+    public void testFrozenContextNamesLibraryFunction() {
+	ErrContext cxt = new ErrContext("f").freezeEnter("map");
+	assertEquals("'map' expects a numeric argument in function f",
+		failure(numeric("first"), cxt));
+    }
+
+    public void testSharedContextAcrossThreads() throws Exception {
+	final Primitive prims[] = { numeric("first"), numeric("second") };
+	final String errors[] = new String[prims.length];
+	Thread threads[] = new Thread[prims.length];
+	for (int i = 0; i < prims.length; i++) {
+	    final int j = i;
+	    threads[i] = new Thread() {
+		public void run() {
+		    String want = "'" + prims[j].getName() 
+			+ "' expects a numeric argument";
+		    for (int n = 0; n < 20000; n++) {
+			String msg = failure(prims[j], ErrContext.initContext);
+			if (! want.equals(msg)) { errors[j] = msg; return; }
+		    }
+		}
+	    };
+	    threads[i].start();
+	}
+	for (Thread t : threads) t.join();
+	for (String e : errors) assertNull(e);
+    }
+}
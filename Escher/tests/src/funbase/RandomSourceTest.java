@@ -0,0 +1,52 @@
+package funbase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class RandomSourceTest extends TestCase {
+    /* Reference values from java.util.SplittableRandom(42), which is 
+       not available on older Android */
+
+    public void testSequence() {
+	RandomSource r = new RandomSource(42);
+	assertEquals(0xbdd732262feb6e95L, r.nextLong());
+	assertEquals(0x28efe333b266f103L, r.nextLong());
+	assertEquals(0x47526757130f9f52L, r.nextLong());
+    }
+
+    public void testSplit() {
+	RandomSource r = new RandomSource(42);
+	for (int i = 0; i < 3; i++) r.nextLong();
+	RandomSource child = r.split();
+	assertEquals(0x146d1cce26adb8c1L, child.nextLong());
+	assertEquals(0x6977cc22a8013e1dL, child.nextLong());
+	assertEquals(0x5c037d2659cd1637L, child.nextLong());
+	assertEquals(0xde4431fa3c80db06L, r.nextLong());
+	assertEquals(0x37e9671c45376d5dL, r.nextLong());
+
+	RandomSource grandchild = child.split();
+	assertEquals(0x188d7163c218823fL, grandchild.nextLong());
+	assertEquals(0x805ecddef9dbc2edL, grandchild.nextLong());
+    }
+
+    public void testSplitStreamsAreDisjoint() {
+	RandomSource r = new RandomSource(7);
+	RandomSource a = r.split(), b = r.split();
+	Set<Long> seen = new HashSet<Long>();
+	for (int i = 0; i < 10000; i++) {
+	    assertTrue(seen.add(r.nextLong()));
+	    assertTrue(seen.add(a.nextLong()));
+	    assertTrue(seen.add(b.nextLong()));
+	}
+    }
+
+    public void testDoubleRange() {
+	RandomSource r = new RandomSource(1);
+	for (int i = 0; i < 100000; i++) {
+	    double x = r.nextDouble();
+	    assertTrue(0.0 <= x && x < 1.0);
+	}
+    }
+}
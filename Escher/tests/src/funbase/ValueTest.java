@@ -0,0 +1,70 @@
+package funbase;
+
+import junit.framework.TestCase;
+
+public class ValueTest extends TestCase {
+    /** Concatenate pieces one at a time, making a deep rope */
+    private static Value rope(String piece, int n) throws Exception {
+	Value s = Value.makeStringValue("");
+	for (int i = 0; i < n; i++)
+	    s = s.concat(Value.makeStringValue(piece + i + ";"));
+	return s;
+    }
+
+    private static String expected(String piece, int n) {
+	StringBuilder b = new StringBuilder();
+	for (int i = 0; i < n; i++) b.append(piece).append(i).append(';');
+	return b.toString();
+    }
+
+    public void testDeepRope() throws Exception {
+	Value s = rope("piece", 100000);
+	String want = expected("piece", 100000);
+	assertEquals(want.length(), s.stringLength());
+	assertEquals(want, s.asString());
+	assertEquals(want.hashCode(), s.hashCode());
+    }
+
+    public void testConcurrentFlatten() throws Exception {
+	for (int round = 0; round < 200; round++) {
+	    /* Several ropes that share one part, flattened at once by
+	       different threads, which also flatten the shared part */
+	    final Value shared = rope("shared", 300);
+	    final Value ropes[] = new Value[4];
+	    final String wants[] = new String[ropes.length];
+	    for (int j = 0; j < ropes.length; j++) {
+		Value r = shared;
+		for (int i = 0; i < 50; i++)
+		    r = r.concat(Value.makeStringValue("t" + j + "," + i + "/"));
+		ropes[j] = r;
+		StringBuilder b = new StringBuilder(expected("shared", 300));
+		for (int i = 0; i < 50; i++)
+		    b.append("t" + j + "," + i + "/");
+		wants[j] = b.toString();
+	    }
+
+	    final Throwable failure[] = new Throwable[1];
+	    Thread threads[] = new Thread[2 * ropes.length];
+	    for (int k = 0; k < threads.length; k++) {
+		final int j = k % ropes.length;
+		final boolean part = (k >= ropes.length);
+		threads[k] = new Thread() {
+		    public void run() {
+			try {
+			    if (part) shared.asString();
+			    if (! ropes[j].asString().equals(wants[j]))
+				throw new AssertionError("rope " + j);
+			}
+			catch (Throwable e) {
+			    synchronized (failure) { failure[0] = e; }
+			}
+		    }
+		};
+	    }
+	    for (Thread t : threads) t.start();
+	    for (Thread t : threads) t.join();
+	    if (failure[0] != null)
+		throw new AssertionError("round " + round + ": " + failure[0]);
+	}
+    }
+}
@@ -0,0 +1,37 @@
+package plugins;
+
+import junit.framework.TestCase;
+
+public class BushPictureTest extends TestCase {
+
+    private static final String COMMANDS = "F[+F][-F]F[+F]F";
+
+    public void testGeometryIsCachedForRepeatedSlider() {
+	BushPicture bush = new BushPicture(COMMANDS);
+	Object g = bush.geometry(0.5f);
+	assertSame("same slider value", g, bush.geometry(0.5f));
+	// Values that round to the same step share the geometry
+	assertSame("same slider step", g, bush.geometry(0.5f + 0.001f));
+    }
+
+    public void testRecentSlidersStayCached() {
+	BushPicture bush = new BushPicture(COMMANDS);
+	Object g[] = new Object[8];
+	for (int i = 0; i < 8; i++)
+	    g[i] = bush.geometry(i / 10.0f);
+	for (int i = 0; i < 8; i++)
+	    assertSame("slider " + i, g[i], bush.geometry(i / 10.0f));
+    }
+
+    public void testLeastRecentIsEvicted() {
+	BushPicture bush = new BushPicture(COMMANDS);
+	Object first = bush.geometry(0.0f);
+	Object second = bush.geometry(0.1f);
+	for (int i = 2; i < 8; i++)
+	    bush.geometry(i / 10.0f);
+	bush.geometry(0.0f);		// Now the most recent
+	bush.geometry(0.9f);		// Evicts slider 0.1
+	assertSame("recently used entry kept", first, bush.geometry(0.0f));
+	assertNotSame("oldest entry evicted", second, bush.geometry(0.1f));
+    }
+}
@@ -0,0 +1,46 @@
+package plugins;
+
+import junit.framework.TestCase;
+
+public class LayerCacheTest extends TestCase {
+    private static final int W = 240, H = 120, BG = 0xffffffff;
+    private static final float SLIDERS[] = { 0.0f, 0.3f, 0.8f, 0.3f };
+
+    private Picture fixed, coloured;
+
+    @Override
+    protected void setUp() {
+	fixed = PictureTests.triangle(0xff2050c0);
+	coloured = PictureTests.call("colour", PictureTests.triangle(1));
+    }
+
+    private void checkFrames(Picture pic, int tolerance) {
+	LayerCache cache = new LayerCache(pic, W, H, BG);
+	for (float s : SLIDERS) {
+	    int frame[] = cache.render(s);
+	    int full[] = PictureTests.draw(pic, W, H, s, BG);
+	    assertTrue("slider " + s, 
+		    PictureTests.maxDiff(frame, full) <= tolerance);
+	}
+    }
+
+    public void testStaticBeforeInteractiveIsLayered() {
+	Picture pic = PictureTests.call("$", fixed, coloured);
+	assertTrue(new LayerCache(pic, W, H, BG).isLayered());
+	// Blending the stroke layer may round by one level
+	checkFrames(pic, 1);
+    }
+
+    public void testInteractiveUnderStaticIsDrawnInFull() {
+	Picture pic = PictureTests.call("super", coloured, fixed);
+	assertFalse(new LayerCache(pic, W, H, BG).isLayered());
+	checkFrames(pic, 0);
+    }
+
+    public void testSeparateInteractivePartIsLayered() {
+	// The triangles do not reach the shared edge, so order does not matter
+	Picture pic = PictureTests.call("$", coloured, fixed);
+	assertTrue(new LayerCache(pic, W, H, BG).isLayered());
+	checkFrames(pic, 1);
+    }
+}
@@ -0,0 +1,134 @@
+package plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+public class PNGEncoderTest extends TestCase {
+    /** Decode the 8-bit RGB or RGBA files that PNGEncoder writes */
+    private static int[] decode(byte png[], int size[]) 
+	    throws IOException, DataFormatException {
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+	assertEquals(0x89504e47, in.readInt());
+	assertEquals(0x0d0a1a0a, in.readInt());
+
+	int width = 0, height = 0, bpp = 0;
+	ByteArrayOutputStream idat = new ByteArrayOutputStream();
+	while (true) {
+	    int len = in.readInt();
+	    byte tag[] = new byte[4], data[] = new byte[len];
+	    in.readFully(tag);
+	    in.readFully(data);
+	    CRC32 crc = new CRC32();
+	    crc.update(tag);
+	    crc.update(data);
+	    assertEquals((int) crc.getValue(), in.readInt());
+
+	    String type = new String(tag, "US-ASCII");
+	    if (type.equals("IHDR")) {
+		DataInputStream h = 
+		    new DataInputStream(new ByteArrayInputStream(data));
+		width = h.readInt(); height = h.readInt();
+		assertEquals(8, h.readByte());
+		int colour = h.readByte();
+		bpp = (colour == 6 ? 4 : 3);
+	    }
+	    else if (type.equals("IDAT"))
+		idat.write(data);
+	    else if (type.equals("IEND"))
+		break;
+	}
+
+	int n = width * bpp;
+	byte raw[] = new byte[height * (n+1)];
+	Inflater inflater = new Inflater();
+	inflater.setInput(idat.toByteArray());
+	assertEquals(raw.length, inflater.inflate(raw));
+	assertTrue(inflater.finished());
+
+	int pixels[] = new int[width * height];
+	byte prev[] = new byte[n], curr[] = new byte[n];
+	for (int y = 0; y < height; y++) {
+	    int type = raw[y*(n+1)];
+	    for (int i = 0; i < n; i++) {
+		int x = raw[y*(n+1) + 1 + i] & 0xff;
+		int a = (i >= bpp ? curr[i-bpp] & 0xff : 0);
+		int b = prev[i] & 0xff;
+		int c = (i >= bpp ? prev[i-bpp] & 0xff : 0);
+		int pred;
+		switch (type) {
+		    case 0: pred = 0; break;
+		    case 1: pred = a; break;
+		    case 2: pred = b; break;
+		    case 3: pred = (a + b) >> 1; break;
+		    case 4: {
+			int p = a + b - c, pa = Math.abs(p - a),
+			    pb = Math.abs(p - b), pc = Math.abs(p - c);
+			pred = (pa <= pb && pa <= pc ? a : pb <= pc ? b : c);
+			break;
+		    }
+		    default: throw new AssertionError("filter " + type);
+		}
+		curr[i] = (byte) (x + pred);
+	    }
+	    for (int x = 0; x < width; x++) {
+		int k = x * bpp;
+		int alpha = (bpp == 4 ? curr[k+3] & 0xff : 0xff);
+		pixels[y*width + x] = (alpha << 24) | ((curr[k] & 0xff) << 16)
+		    | ((curr[k+1] & 0xff) << 8) | (curr[k+2] & 0xff);
+	    }
+	    byte tmp[] = prev; prev = curr; curr = tmp;
+	}
+
+	size[0] = width; size[1] = height;
+	return pixels;
+    }
+
+    private static void roundTrip(int pixels[], int w, int h) 
+	    throws Exception {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	PNGEncoder.write(pixels, w, h, out);
+	int size[] = new int[2];
+	int result[] = decode(out.toByteArray(), size);
+	assertEquals(w, size[0]);
+	assertEquals(h, size[1]);
+	for (int i = 0; i < w * h; i++)
+	    assertEquals("pixel " + i, pixels[i], result[i]);
+    }
+
+    public void testOpaque() throws Exception {
+	// A smooth gradient with noise, so that every filter gets used
+	Random random = new Random(1);
+	int w = 37, h = 23, pixels[] = new int[w * h];
+	for (int y = 0; y < h; y++)
+	    for (int x = 0; x < w; x++)
+		pixels[y*w + x] = 0xff000000 | (x*6 << 16) | (y*10 << 8)
+		    | random.nextInt(256);
+	roundTrip(pixels, w, h);
+    }
+
+    public void testTranslucent() throws Exception {
+	Random random = new Random(2);
+	int w = 19, h = 11, pixels[] = new int[w * h];
+	for (int i = 0; i < w * h; i++)
+	    pixels[i] = random.nextInt();
+	pixels[0] = 0xff000000;
+	roundTrip(pixels, w, h);
+    }
+
+    public void testRendered() throws Exception {
+	SoftTablet g = new SoftTablet(40, 30, 0);
+	g.fillOutline(new Vec2D[] { 
+	    new Vec2D(3, 2), new Vec2D(35, 7), new Vec2D(12, 28)
+	}, 0xff3060c0, Tran2D.translation(0, 0));
+	g.close();
+	roundTrip(g.getPixels(), 40, 30);
+    }
+}
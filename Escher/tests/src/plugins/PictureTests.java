@@ -0,0 +1,61 @@
+package plugins;
+
+import funbase.ErrContext;
+import funbase.Evaluator.Continuation;
+import funbase.Evaluator.Result;
+import funbase.Primitive;
+import funbase.Value;
+
+/** Helpers for making pictures in tests without a saved session */
+class PictureTests {
+    private PictureTests() { }
+
+    /** Apply one of the picture primitives */
+    static Picture call(String name, Value... args) {
+	for (Primitive p : Picture.primitives) {
+	    if (p.getName().equals(name)) {
+		final Value result[] = new Value[1];
+		p.apply(args, 0, args.length, ErrContext.initContext,
+			new Continuation() {
+		    public Result result(Value v) {
+			result[0] = v;
+			return null;
+		    }
+		});
+		return (Picture) result[0];
+	    }
+	}
+	throw new IllegalArgumentException(name);
+    }
+
+    /** A unit square tile with a triangle filled in a given colour,
+     * which is a palette index if it is small, and an outline */
+    static Picture triangle(int colour) {
+	Vec2D tri[] = { 
+	    new Vec2D(0.1f, 0.1f), new Vec2D(0.9f, 0.2f), 
+	    new Vec2D(0.4f, 0.9f)
+	};
+	return new TilePicture(1, 1, new Vec2D[][] { tri }, 
+		new Vec2D[][] { tri }, new int[] { colour });
+    }
+
+    /** Draw a picture in full */
+    static int[] draw(Picture pic, int w, int h, float slider, int bg) {
+	SoftTablet g = new SoftTablet(w, h, slider);
+	pic.draw(g, w, h, bg);
+	g.close();
+	return g.getPixels();
+    }
+
+    /** Greatest difference between corresponding channels */
+    static int maxDiff(int a[], int b[]) {
+	int max = 0;
+	for (int i = 0; i < a.length; i++) {
+	    for (int s = 0; s < 32; s += 8) {
+		int d = Math.abs(((a[i] >> s) & 0xff) - ((b[i] >> s) & 0xff));
+		max = Math.max(max, d);
+	    }
+	}
+	return max;
+    }
+}
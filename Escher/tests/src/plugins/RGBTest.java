@@ -0,0 +1,76 @@
+package plugins;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class RGBTest extends TestCase {
+    /** Check the batch fromHSB against the scalar one, bit for bit */
+    private static void compare(float hsb[], int n) {
+	int rgb[] = new int[n];
+	RGB.fromHSB(hsb, rgb, n);
+	for (int i = 0; i < n; i++) {
+	    float h = hsb[3*i], s = hsb[3*i+1], b = hsb[3*i+2];
+	    int want = RGB.fromHSB(h, s, b);
+	    if (rgb[i] != want)
+		fail(String.format("hsb(%s, %s, %s): %08x, not %08x",
+			h, s, b, rgb[i], want));
+	}
+    }
+
+    public void testRandom() {
+	Random random = new Random(45);
+	int n = 2000000;
+	float hsb[] = new float[3*n];
+	for (int i = 0; i < n; i++) {
+	    hsb[3*i] = 5 * random.nextFloat() - 2;
+	    hsb[3*i+1] = (random.nextInt(8) == 0 ? 0 : random.nextFloat());
+	    hsb[3*i+2] = random.nextFloat();
+	}
+	compare(hsb, n);
+    }
+
+    public void testEdgeCases() {
+	float special[] = {
+	    0.0f, -0.0f, 1.0f, -1.0f, 0.5f, 
+	    1.0f/6, 2.0f/6, 3.0f/6, 4.0f/6, 5.0f/6,
+	    Math.nextAfter(1.0f, 0), Math.nextAfter(0.0f, -1),
+	    Math.nextUp(1.0f), -Math.nextAfter(1.0f, 0),
+	    Float.MIN_VALUE, -Float.MIN_VALUE, 1.0e-30f, 1.0e10f,
+	    Float.MAX_VALUE, -Float.MAX_VALUE, 
+	    Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN,
+	    1.1f, -0.1f, 2.0f
+	};
+
+	// Every combination of special values
+	int m = special.length, n = m * m * m;
+	float hsb[] = new float[3*n];
+	int k = 0;
+	for (float h : special)
+	    for (float s : special)
+		for (float b : special) {
+		    hsb[k++] = h; hsb[k++] = s; hsb[k++] = b;
+		}
+	compare(hsb, n);
+    }
+
+    public void testSectorBoundaries() {
+	// Hues on either side of each multiple of 1/6
+	int n = 6 * 2 * 256;
+	float hsb[] = new float[3*n];
+	int k = 0;
+	for (int j = 0; j < 6; j++) {
+	    float h = j / 6.0f;
+	    for (int d = 0; d < 256; d++) {
+		hsb[k++] = h; hsb[k++] = 1.0f; hsb[k++] = d / 255.0f;
+		h = Math.nextUp(h);
+	    }
+	    h = (j+1) / 6.0f;
+	    for (int d = 0; d < 256; d++) {
+		h = Math.nextAfter(h, 0);
+		hsb[k++] = h; hsb[k++] = 0.75f; hsb[k++] = d / 255.0f;
+	    }
+	}
+	compare(hsb, n);
+    }
+}
@@ -0,0 +1,74 @@
+package plugins;
+
+import junit.framework.TestCase;
+
+public class SoftTabletTest extends TestCase {
+    private static final int RED = 0xffff0000, BLUE = 0xff0000ff;
+
+    private static Vec2D[] box(float x0, float y0, float x1, float y1) {
+	return new Vec2D[] { 
+	    new Vec2D(x0, y0), new Vec2D(x0, y1), 
+	    new Vec2D(x1, y1), new Vec2D(x1, y0)
+	};
+    }
+
+    public void testFillBox() {
+	SoftTablet g = new SoftTablet(16, 16, 0);
+	g.fillOutline(box(4, 4, 12, 12), RED, Tran2D.translation(0, 0));
+	g.close();
+	int pix[] = g.getPixels();
+
+	for (int y = 0; y < 16; y++) {
+	    for (int x = 0; x < 16; x++) {
+		boolean inside = (4 <= x && x < 12 && 4 <= y && y < 12);
+		assertEquals("(" + x + ", " + y + ")", 
+			(inside ? RED : 0), pix[y*16 + x]);
+	    }
+	}
+    }
+
+    public void testEdgeCoverage() {
+	SoftTablet g = new SoftTablet(16, 16, 0);
+	g.fillOutline(box(4.5f, 4, 12, 12), RED, Tran2D.translation(0, 0));
+	g.close();
+	int pix[] = g.getPixels();
+
+	// The left column is half covered, so half opaque
+	for (int y = 4; y < 12; y++) {
+	    int p = pix[y*16 + 4];
+	    assertEquals(0x00ff0000, p & 0x00ffffff);
+	    assertEquals(0x80, RGB.alpha(p), 2);
+	    assertEquals(RED, pix[y*16 + 5]);
+	}
+    }
+
+    public void testDrawImage() {
+	// Top half red, bottom half blue
+	PixelArray image = new PixelArray(64, 64);
+	for (int y = 0; y < 64; y++)
+	    for (int x = 0; x < 64; x++)
+		image.setRGB(x, y, (y < 32 ? RED : BLUE));
+
+	SoftTablet g = new SoftTablet(8, 8, 0);
+	g.drawImage(image, Tran2D.scaling(8, 8));
+	g.close();
+	int pix[] = g.getPixels();
+
+	// Device y runs downwards from the bottom of the unit square
+	for (int y = 0; y < 8; y++)
+	    for (int x = 0; x < 8; x++)
+		assertEquals((y < 4 ? BLUE : RED), pix[y*8 + x]);
+    }
+
+    public void testImageChangesAreSeen() {
+	PixelArray image = new PixelArray(2, 2);
+	for (int i = 0; i < 4; i++) image.setRGB(i%2, i/2, RED);
+	SoftTablet g = new SoftTablet(2, 2, 0);
+	g.drawImage(image, Tran2D.scaling(2, 2));
+	assertEquals(RED, g.getPixels()[0]);
+
+	for (int i = 0; i < 4; i++) image.setRGB(i%2, i/2, BLUE);
+	g.drawImage(image, Tran2D.scaling(2, 2));
+	assertEquals(BLUE, g.getPixels()[0]);
+    }
+}
@@ -0,0 +1,36 @@
+package plugins;
+
+import junit.framework.TestCase;
+
+public class TileCacheTest extends TestCase {
+    private static final int SIZE = 200, BG = 0xffffffff;
+
+    /** A picture that shows the same tile many times */
+    private static Picture repeated() {
+	Picture p = PictureTests.triangle(0xff2050c0);
+	for (int i = 0; i < 4; i++) {
+	    Picture q = PictureTests.call("rot", p);
+	    p = PictureTests.call("&", PictureTests.call("$", p, q),
+		    PictureTests.call("$", q, p));
+	}
+	return p;
+    }
+
+    public void testNoCacheByDefault() {
+	Picture pic = repeated();
+	int direct[] = PictureTests.draw(pic, SIZE, SIZE, 0, BG);
+	int tiled[] = new TiledRenderer(SoftTablet.backend, 64, 1)
+	    .render(pic, SIZE, SIZE, 0, BG);
+	assertEquals(0, PictureTests.maxDiff(direct, tiled));
+    }
+
+    public void testCachedTilesAreClose() {
+	Picture pic = repeated();
+	TileCache cache = new TileCache(1 << 20);
+	int exact[] = PictureTests.draw(pic, SIZE, SIZE, 0, BG);
+	int cached[] = new TiledRenderer(SoftTablet.backend(cache), 64, 2)
+	    .render(pic, SIZE, SIZE, 0, BG);
+	assertTrue(cache.getHits() > 0);
+	assertTrue(PictureTests.maxDiff(exact, cached) <= 1);
+    }
+}
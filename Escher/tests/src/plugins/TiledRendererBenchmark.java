@@ -0,0 +1,38 @@
+package plugins;
+
+/** Time TiledRenderer with different numbers of threads.  This is not
+ *  a test case: run it with main, on a machine that is otherwise idle. */
+public class TiledRendererBenchmark {
+    private static final int ROUNDS = 10, BG = 0xffffffff;
+
+    private static int size = 1000;
+
+    private static double time(TiledRenderer r, Picture pic) {
+	long best = Long.MAX_VALUE;
+	for (int i = 0; i < ROUNDS; i++) {
+	    long t0 = System.nanoTime();
+	    r.render(pic, size, size, 0.5f, BG);
+	    best = Math.min(best, System.nanoTime() - t0);
+	}
+	return best / 1e6;
+    }
+
+    public static void main(String args[]) {
+	// Arguments: depth of the picture, and size of the image
+	int depth = (args.length > 0 ? Integer.parseInt(args[0]) : 5);
+	if (args.length > 1) size = Integer.parseInt(args[1]);
+	Picture pic = TiledRendererTest.sample(depth);
+	int cpus = Runtime.getRuntime().availableProcessors();
+
+	// Warm up the compiler
+	time(new TiledRenderer(SoftTablet.backend, 128, cpus), pic);
+
+	double base = 0;
+	for (int n = 1; n <= 2 * cpus; n *= 2) {
+	    double t = time(new TiledRenderer(SoftTablet.backend, 128, n), pic);
+	    if (n == 1) base = t;
+	    System.out.printf("%2d threads: %7.1f ms  speedup %.2f%n",
+		    n, t, base / t);
+	}
+    }
+}
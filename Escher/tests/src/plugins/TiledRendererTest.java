@@ -0,0 +1,63 @@
+package plugins;
+
+import junit.framework.TestCase;
+
+public class TiledRendererTest extends TestCase {
+    private static final int W = 301, H = 157, BG = 0xffffffff;
+
+    /** A picture with both kinds of tile, strokes and fills */
+    static Picture sample(int depth) {
+	Picture p = PictureTests.call("$", PictureTests.triangle(0xff2050c0),
+		PictureTests.call("colour", PictureTests.triangle(1)));
+	for (int i = 0; i < depth; i++) {
+	    Picture q = PictureTests.call("rot", p);
+	    p = PictureTests.call("&", PictureTests.call("$", p, q),
+		    PictureTests.call("$", q, p));
+	}
+	return p;
+    }
+
+    public void testTilesMatchSingleTablet() {
+	Picture pic = sample(3);
+	int single[] = PictureTests.draw(pic, W, H, 0.4f, BG);
+	int tileSizes[] = { 16, 50, 64, 512 };
+	int threads[] = { 1, 2, 3, 8 };
+	for (int size : tileSizes) {
+	    for (int n : threads) {
+		int tiled[] = new TiledRenderer(SoftTablet.backend, size, n)
+		    .render(pic, W, H, 0.4f, BG);
+		assertEquals("tiles " + size + ", threads " + n,
+			0, PictureTests.maxDiff(single, tiled));
+	    }
+	}
+    }
+
+    public void testRepeatedRendersReuseThreads() {
+	Picture pic = sample(2);
+	TiledRenderer r = new TiledRenderer(SoftTablet.backend, 32, 4);
+	int first[] = r.render(pic, W, H, 0, BG);
+	int before = Thread.activeCount();
+	for (int i = 0; i < 20; i++)
+	    assertEquals(0, PictureTests.maxDiff(first, 
+			r.render(pic, W, H, 0, BG)));
+	assertTrue(Thread.activeCount() <= before + 1);
+    }
+
+    public void testFailureIsReported() {
+	Drawable bad = new Drawable() {
+	    public float getAspect() { return 1.0f; }
+	    public boolean isInteractive() { return false; }
+	    public void draw(Tablet g, int width, int height, int bg) {
+		throw new IllegalStateException("bad");
+	    }
+	};
+	try {
+	    new TiledRenderer(SoftTablet.backend, 32, 4)
+		.render(bad, 100, 100, 0, BG);
+	    fail();
+	}
+	catch (IllegalStateException e) {
+	    assertEquals("bad", e.getMessage());
+	}
+    }
+}